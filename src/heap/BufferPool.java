@@ -0,0 +1,336 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.util.HashMap;
+
+/**
+ * The heap layer's way into Minibase.BufferManager. The buffer manager isn't
+ * thread-safe, so every pin, unpin, allocation and free made by heap files,
+ * their scans and the scan prefetcher goes through here, serialized on the
+ * buffer manager itself. Pages read around the pool can instead be copied out
+ * of a memory mapping of the database file, set up with mapDatabase, and
+ * pages unpinned dirty can be written back ahead of eviction by a WriteBehind
+ * writer, started with startWriteback. Changes to pages can be logged to a
+ * HeapLog, started with startLogging, in which case a page unpinned dirty
+ * stays pinned until the log records of its changes are durable. Every change
+ * to a page is made while it's pinned, so the pool counts the pins on each
+ * page, and the background writer only writes pages no one has pinned, as
+ * eviction does: no change to them is under way, and with logging on their
+ * changes are all durable.
+ */
+final class BufferPool {
+
+    private static volatile MappedDisk mapped;
+    private static volatile WriteBehind writer;
+    private static volatile HeapLog log;
+
+    /** Pins held on each page through the pool, under the buffer manager. */
+    private static final HashMap<Integer, Integer> pins = new HashMap<>();
+
+    private BufferPool() {
+    }
+
+    static void pinPage(PageId pageId, Page page, boolean skipRead) {
+        synchronized (Minibase.BufferManager) {
+            Minibase.BufferManager.pinPage(pageId, page, skipRead);
+            pins.merge(pageId.pid, 1, Integer::sum);
+        }
+    }
+
+    static void unpinPage(PageId pageId, boolean dirty) throws ChainException {
+        HeapLog l = log;
+        if (dirty && l != null && l.deferUnpin(pageId)) {
+            return;
+        }
+
+        try {
+            synchronized (Minibase.BufferManager) {
+                Minibase.BufferManager.unpinPage(pageId, dirty);
+                unpinned(pageId);
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.unpinPage: Failed to unpin page " + pageId.pid);
+        }
+
+        WriteBehind w = writer;
+        if (dirty && w != null) {
+            w.pageDirtied(pageId);
+        }
+    }
+
+    /**
+     * Unpins a dirty page the log kept pinned, once its changes are durable.
+     */
+    static void releasePin(PageId pageId) {
+        try {
+            synchronized (Minibase.BufferManager) {
+                Minibase.BufferManager.unpinPage(pageId, true);
+                unpinned(pageId);
+            }
+        } catch (Exception e) {
+            // Nothing else unpins the page, so this can't happen
+            return;
+        }
+
+        WriteBehind w = writer;
+        if (w != null) {
+            w.pageDirtied(pageId);
+        }
+    }
+
+    /**
+     * Counts off a pin on the given page; the caller holds the buffer manager.
+     */
+    private static void unpinned(PageId pageId) {
+        pins.computeIfPresent(pageId.pid, (pid, n) -> n == 1 ? null : n - 1);
+    }
+
+    static PageId newPage(Page page, int runSize) throws ChainException {
+        try {
+            synchronized (Minibase.BufferManager) {
+                PageId pageId = Minibase.BufferManager.newPage(page, runSize);
+                pins.merge(pageId.pid, 1, Integer::sum);
+                return pageId;
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.newPage: Failed to allocate a new page");
+        }
+    }
+
+    /**
+     * Frees a page. With logging on, the free is logged and committed first,
+     * so it's durable before the page can be reused and the page isn't still
+     * kept pinned for the log.
+     */
+    static void freePage(PageId pageId) throws ChainException {
+        HeapLog l = log;
+        if (l != null) {
+            l.free(pageId);
+            l.commit();
+        }
+
+        WriteBehind w = writer;
+        if (w != null) {
+            w.pageFreed(pageId);
+        }
+
+        try {
+            synchronized (Minibase.BufferManager) {
+                Minibase.BufferManager.freePage(pageId);
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.freePage: Failed to free page " + pageId.pid);
+        }
+    }
+
+    /**
+     * Reads the given page into the caller's own page buffer without placing
+     * it in the buffer pool, first writing out the pool's copy if it's dirty
+     * so the read sees the latest contents. The page is copied out of the
+     * database file's mapping if one has been set up, and otherwise read
+     * through the disk manager. The caller holds the page's shared latch, so
+     * no change to it is under way; with logging on, the log is committed
+     * first, so the page isn't written ahead of its changes' records.
+     */
+    static void readPage(PageId pageId, Page page) throws ChainException {
+        MappedDisk disk = mapped;
+        commitLog();
+
+        try {
+            synchronized (Minibase.BufferManager) {
+                Minibase.BufferManager.flushPage(pageId);
+                if (disk == null) {
+                    Minibase.DiskManager.read_page(pageId, page);
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.readPage: Failed to read page " + pageId.pid);
+        }
+
+        disk.readPage(pageId, page);
+    }
+
+    /**
+     * Writes out every dirty page in the pool.
+     */
+    static void flushAll() throws ChainException {
+        try {
+            synchronized (Minibase.BufferManager) {
+                Minibase.BufferManager.flushAllPages();
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.flushAll: Failed to flush the buffer pool");
+        }
+    }
+
+    /**
+     * Writes out every dirty page in the pool, as flushAll does, but only if
+     * no page is pinned through the pool, holding the buffer manager
+     * throughout; returns false, having written nothing, if one is. With
+     * logging on, no change is then under way or waiting on the log.
+     */
+    static boolean flushIfUnpinned() throws ChainException {
+        try {
+            synchronized (Minibase.BufferManager) {
+                if (!pins.isEmpty()) {
+                    return false;
+                }
+                Minibase.BufferManager.flushAllPages();
+                return true;
+            }
+        } catch (Exception e) {
+            throw new ChainException(e, "BufferPool.flushIfUnpinned: Failed to flush the buffer pool");
+        }
+    }
+
+    /**
+     * Has readPage copy pages out of a memory mapping of the given database
+     * file, which must be the one the disk manager was opened on, in place of
+     * the mapping set up before, if any.
+     */
+    static void mapDatabase(String path) throws ChainException {
+        MappedDisk disk = new MappedDisk(path);
+        MappedDisk old = mapped;
+        mapped = disk;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Has readPage go back to reading through the disk manager.
+     */
+    static void unmapDatabase() throws ChainException {
+        MappedDisk old = mapped;
+        mapped = null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Writes out pids[from, to) if they're dirty in the pool, holding the
+     * buffer manager for the whole run. Pages that can't be flushed are
+     * skipped, and so are pages someone has pinned: they may be partway
+     * through a change, or kept pinned until its log records are durable.
+     */
+    static void flushPages(int[] pids, int from, int to) {
+        PageId pageId = new PageId();
+
+        synchronized (Minibase.BufferManager) {
+            for (int i = from; i < to; i++) {
+                pageId.pid = pids[i];
+                if (pins.containsKey(pageId.pid)) {
+                    continue;
+                }
+                try {
+                    Minibase.BufferManager.flushPage(pageId);
+                } catch (Exception e) {
+                    // The page has been freed or can't be written; eviction
+                    // will deal with it as before
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts writing dirty pages back in the background, once the given
+     * number of them have built up, replacing the writer started before, if
+     * any.
+     */
+    static void startWriteback(int maxDirty) throws ChainException {
+        WriteBehind old = writer;
+        writer = new WriteBehind(maxDirty);
+        stopWriter(old);
+    }
+
+    /**
+     * Flushes the pages the background writer still has waiting and stops it.
+     */
+    static void stopWriteback() throws ChainException {
+        WriteBehind old = writer;
+        writer = null;
+        stopWriter(old);
+    }
+
+    private static void stopWriter(WriteBehind w) throws ChainException {
+        if (w == null) {
+            return;
+        }
+
+        try {
+            w.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChainException(e, "BufferPool.stopWriteback: Interrupted while flushing");
+        }
+    }
+
+    /**
+     * Redoes the log at the given path and logs every later change to heap
+     * pages there, replacing the log started before, if any, which is
+     * stopped first. Heap files must not be in use meanwhile.
+     */
+    static void startLogging(String path) throws ChainException {
+        stopLogging();
+        log = HeapLog.open(path);
+    }
+
+    /**
+     * Stops logging, after flushing every dirty page so the log can be
+     * emptied. Heap files must not be in use meanwhile.
+     */
+    static void stopLogging() throws ChainException {
+        HeapLog old = log;
+        log = null;
+        if (old != null) {
+            old.stop();
+        }
+    }
+
+    /**
+     * Waits until every change logged so far is durable; does nothing if
+     * logging is off.
+     */
+    static void commitLog() throws ChainException {
+        HeapLog l = log;
+        if (l != null) {
+            l.commit();
+        }
+    }
+
+    /**
+     * Logs the whole of a page a heap file has just filled in.
+     */
+    static void logPage(PageId pageId, Page page) {
+        HeapLog l = log;
+        if (l != null) {
+            l.page(pageId, page);
+        }
+    }
+
+    /**
+     * Logs the whole of a new data page of the file whose header is fileId.
+     */
+    static void logDataPage(int fileId, HFPage page) {
+        HeapLog l = log;
+        if (l != null) {
+            l.dataPage(fileId, page);
+        }
+    }
+
+    /**
+     * Logs the new contents of a slot of a data page of the file whose header
+     * is fileId; the caller holds the page's exclusive latch, or has the page
+     * to itself.
+     */
+    static void logSlot(int fileId, HFPage page, int slotno) {
+        HeapLog l = log;
+        if (l != null) {
+            l.slot(fileId, page, slotno);
+        }
+    }
+}
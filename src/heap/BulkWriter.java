@@ -0,0 +1,96 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+/**
+ * A BulkWriter object is created only through the function openBulkWriter() in
+ * the HeapFile class. It packs records into a page buffer of its own, outside
+ * the buffer pool, and only hands each page to the buffer manager once it's
+ * full, so the directory and header are updated once per page rather than
+ * once per record. The records are not visible in the file until their page
+ * is handed over; close() hands over the last, partly filled page.
+ */
+public class BulkWriter implements GlobalConst, AutoCloseable {
+
+    /** Fill factor used when none is given. */
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+    HeapFile hf;
+    HFPage page;
+    int maxUsed;
+    int recCnt;
+    int recBytes;
+    boolean open;
+
+    /**
+     * Constructs a bulk writer that fills each page only up to the given
+     * fraction of its space.
+     *
+     * @throws IllegalArgumentException if the fill factor isn't in (0, 1]
+     */
+    protected BulkWriter(HeapFile hf, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Invalid fill factor");
+        }
+
+        this.hf = hf;
+        this.page = new HFPage();
+        this.maxUsed = (int)(fillFactor * (PAGE_SIZE - HFPage.HEADER_SIZE));
+        this.open = true;
+    }
+
+    /**
+     * Adds a record to the current page, first handing that page over and
+     * starting a new one if the record would take it past the fill factor.
+     */
+    public void insertRecord(byte[] record) throws ChainException {
+        if (!open) {
+            throw new IllegalStateException("BulkWriter is closed");
+        }
+        if (record.length > HFPage.MAX_RECORD) {
+            throw new ChainException(null, "BulkWriter.insertRecord: Argument 'record' is larger than a data page holds");
+        }
+
+        // Every page takes at least one record, whatever the fill factor
+        int spaceNeeded = HFPage.spaceNeeded(record.length);
+        int freeSpace = page.getFreeSpace();
+        int used = PAGE_SIZE - HFPage.HEADER_SIZE - freeSpace;
+        if (recCnt > 0 && (spaceNeeded > freeSpace || used + spaceNeeded > maxUsed)) {
+            flush();
+        }
+
+        page.insertRecord(record);
+        recCnt++;
+        recBytes += record.length;
+    }
+
+    /**
+     * Hands the last page to the buffer manager and closes the writer,
+     * committing the pages it added if logging is on.
+     */
+    public void close() throws ChainException {
+        if (open) {
+            flush();
+            open = false;
+            BufferPool.commitLog();
+        }
+    }
+
+    /**
+     * Hands the current page to the buffer manager, if it holds any records,
+     * and starts a new one.
+     */
+    private void flush() throws ChainException {
+        if (recCnt == 0) {
+            return;
+        }
+
+        HFPage hfPage = hf.appendPage(page, recCnt, recBytes);
+        BufferPool.unpinPage(hfPage.getCurPage(), true);
+
+        page.initDefaults();
+        recCnt = 0;
+        recBytes = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package heap;
+
+import global.GlobalConst;
+import global.Page;
+import global.PageId;
+
+/**
+ * A page of a heap file's directory. Each entry names one data page of the
+ * file along with its free bytes and record count; entries are kept in the
+ * order the data pages were added, and directory pages are chained together
+ * through their next page pointers. The first (root) directory page also
+ * records the id of the last one, so appends never walk the chain.
+ */
+class DirPage extends HeapPage implements GlobalConst {
+    protected static final int NEXT_PAGE = 0;
+    protected static final int ENTRY_CNT = 4;
+    protected static final int LAST_PAGE = 8;
+    protected static final int HEADER_SIZE = 12;
+    protected static final int ENTRY_SIZE = 8;
+    protected static final int MAX_ENTRIES = (PAGE_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+
+    public DirPage() {
+        this.initDefaults();
+    }
+
+    public DirPage(Page page) {
+        super(page.getData());
+    }
+
+    protected void initDefaults() {
+        this.setInt(-1, NEXT_PAGE);
+        this.setShort((short)0, ENTRY_CNT);
+        this.setInt(-1, LAST_PAGE);
+    }
+
+    public PageId getNextPage() {
+        return new PageId(this.getInt(NEXT_PAGE));
+    }
+
+    public void setNextPage(PageId pageno) {
+        this.setInt(pageno.pid, NEXT_PAGE);
+    }
+
+    public PageId getLastPage() {
+        return new PageId(this.getInt(LAST_PAGE));
+    }
+
+    public void setLastPage(PageId pageno) {
+        this.setInt(pageno.pid, LAST_PAGE);
+    }
+
+    public short getEntryCount() {
+        return this.getShort(ENTRY_CNT);
+    }
+
+    public PageId getPageId(int entryno) {
+        return new PageId(this.getInt(HEADER_SIZE + entryno * ENTRY_SIZE));
+    }
+
+    /**
+     * Gets the free bytes of an entry's data page, which are stored unsigned
+     * so a 64 KB page fits.
+     */
+    public int getFreeSpace(int entryno) {
+        return this.getShort(HEADER_SIZE + entryno * ENTRY_SIZE + 4) & 0xFFFF;
+    }
+
+    public short getRecCnt(int entryno) {
+        return this.getShort(HEADER_SIZE + entryno * ENTRY_SIZE + 6);
+    }
+
+    public void setEntry(int entryno, int freeSpace, int recCnt) {
+        int entrypos = HEADER_SIZE + entryno * ENTRY_SIZE;
+        this.setShort((short)freeSpace, entrypos + 4);
+        this.setShort((short)recCnt, entrypos + 6);
+    }
+
+    /**
+     * Appends an entry for the given data page, returning its entry number or
+     * -1 if this directory page is full.
+     */
+    public int addEntry(PageId pageno, int freeSpace, int recCnt) {
+        short entryCnt = this.getEntryCount();
+        if (entryCnt == MAX_ENTRIES) {
+            return -1;
+        }
+
+        this.setInt(pageno.pid, HEADER_SIZE + entryCnt * ENTRY_SIZE);
+        this.setEntry(entryCnt, freeSpace, recCnt);
+        this.setShort((short)(entryCnt + 1), ENTRY_CNT);
+        return entryCnt;
+    }
+}
@@ -0,0 +1,98 @@
+package heap;
+
+import global.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Tracks how much free space each data page of a heap file has, so inserts can
+ * go straight to a page that fits instead of pinning pages until one does.
+ * Pages are bucketed by free-space category (free bytes / CATEGORY_BYTES). The
+ * map is an in-memory cache over the free bytes recorded in the file's
+ * directory, filled in as directory pages are loaded. Its methods are
+ * synchronized on the map, as the directory updates it without holding its
+ * own lock; findPage holds the map while it tests candidates, so the test
+ * mustn't block.
+ */
+class FreeSpaceMap implements GlobalConst {
+
+    /** Width in bytes of each free-space category. */
+    static final int CATEGORY_BYTES = 64;
+
+    /** Number of free-space categories. */
+    static final int CATEGORIES = PAGE_SIZE / CATEGORY_BYTES + 1;
+
+    private HashMap<PageId, Integer> categories;
+    private ArrayList<LinkedHashSet<PageId>> buckets;
+
+    FreeSpaceMap() {
+        categories = new HashMap<>();
+        buckets = new ArrayList<>(CATEGORIES);
+        for (int i = 0; i < CATEGORIES; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+    }
+
+    /**
+     * Gets the category a page with the given number of free bytes falls into;
+     * every page in category c has at least c * CATEGORY_BYTES free bytes.
+     */
+    static int categoryOf(int freeBytes) {
+        return Math.min(Math.max(freeBytes, 0) / CATEGORY_BYTES, CATEGORIES - 1);
+    }
+
+    /**
+     * Finds a data page with at least the given number of free bytes that the
+     * given test accepts, choosing from the fullest category that is
+     * guaranteed to fit; returns null if no such page has enough room.
+     */
+    synchronized PageId findPage(int spaceNeeded, Predicate<PageId> accept) {
+        int first = (spaceNeeded + CATEGORY_BYTES - 1) / CATEGORY_BYTES;
+        for (int c = first; c < CATEGORIES; c++) {
+            for (PageId pageId : buckets.get(c)) {
+                if (accept.test(pageId)) {
+                    return pageId;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a data page with the given free bytes to the map.
+     */
+    synchronized void addPage(PageId pageId, int freeBytes) {
+        int category = categoryOf(freeBytes);
+        categories.put(pageId, category);
+        buckets.get(category).add(pageId);
+    }
+
+    /**
+     * Records that the given data page now has the given free bytes.
+     */
+    synchronized void updatePage(PageId pageId, int freeBytes) {
+        int category = categoryOf(freeBytes);
+        int oldCategory = categories.get(pageId);
+        if (category == oldCategory) {
+            return;
+        }
+
+        buckets.get(oldCategory).remove(pageId);
+        buckets.get(category).add(pageId);
+        categories.put(pageId, category);
+    }
+
+    /**
+     * Forgets every page in the map.
+     */
+    synchronized void clear() {
+        categories.clear();
+        for (LinkedHashSet<PageId> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+}
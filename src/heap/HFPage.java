@@ -1,24 +1,61 @@
-//
-// Source code recreated from a .class file by IntelliJ IDEA
-// (powered by Fernflower decompiler)
-//
-
 package heap;
 
+import global.GlobalConst;
 import global.Page;
 import global.PageId;
 import global.RID;
-
-class HFPage extends Page {
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A slotted data page. Empty slots are chained into a free-slot list through
+ * their offset fields, with the head in the page header, so a slot can be
+ * reused without searching for one. The header also keeps the number of live
+ * slots and an occupancy map with one bit per group of SLOT_GROUP slots, set
+ * while any slot in the group is live, so iteration skips over runs of empty
+ * slots a group at a time. Deleting a record only frees its slot; the space
+ * it leaves behind is counted as free but stays where it is until an insert
+ * needs it, when compact() moves the records back together. Until then, the
+ * fragmented space is the free space not in the gap between the slot
+ * directory and USED_PTR.
+ *
+ * The layout follows PAGE_SIZE rather than assuming 1 KB pages: byte counts,
+ * offsets and slot lengths are stored as ints, and the slot group size grows
+ * with the page so the 32-bit occupancy map always covers every slot. Slot
+ * numbers stay shorts, since even a 64 KB page holds only a few thousand.
+ *
+ * The top bits of a slot's length field mark the two kinds of slot used to
+ * keep RIDs stable when a record outgrows its page. A FORWARD slot is a stub
+ * that holds only the RID of the page and slot the record has moved to, and
+ * a MOVED slot holds a relocated record, prefixed by the RID of its stub.
+ * getSlotLength and getSlotOffset describe just the record's own bytes, and
+ * nextSlot skips stubs, so the record is seen once, where it's stored. A
+ * LARGE slot is the head of a record too large for a data page: it holds the
+ * record's length and the id of the first page of its OverflowChain, and
+ * getSlotLength and getSlotOffset describe the head, not the record. Every
+ * record takes up at least HEAD_SIZE bytes, so it can always become a stub
+ * or a large record's head in place.
+ */
+class HFPage extends HeapPage {
     protected static final int SLOT_CNT = 0;
-    protected static final int USED_PTR = 2;
-    protected static final int FREE_SPACE = 4;
-    protected static final int PAGE_TYPE = 6;
-    protected static final int PREV_PAGE = 8;
-    protected static final int NEXT_PAGE = 12;
-    protected static final int CUR_PAGE = 16;
-    protected static final int HEADER_SIZE = 20;
-    protected static final int SLOT_SIZE = 4;
+    protected static final int LIVE_CNT = 2;
+    protected static final int USED_PTR = 4;
+    protected static final int FREE_SPACE = 8;
+    protected static final int OCCUPANCY = 12;
+    protected static final int NEXT_PAGE = 16;
+    protected static final int CUR_PAGE = 20;
+    protected static final int FREE_SLOT = 24;
+    protected static final int HEADER_SIZE = 26;
+    protected static final int SLOT_SIZE = 8;
+    protected static final int RID_SIZE = 6;
+    protected static final int HEAD_SIZE = 8;
+    protected static final int MAX_RECORD = GlobalConst.PAGE_SIZE - HEADER_SIZE - SLOT_SIZE;
+    protected static final int MAX_SLOTS = (GlobalConst.PAGE_SIZE - HEADER_SIZE) / (SLOT_SIZE + HEAD_SIZE);
+    protected static final int SLOT_GROUP = (MAX_SLOTS + 31) / 32;
+    protected static final int FORWARD = 0x40000000;
+    protected static final int MOVED = 0x20000000;
+    protected static final int LARGE = 0x10000000;
+    protected static final int LENGTH_MASK = 0x0FFFFFFF;
 
     public HFPage() {
         this.initDefaults();
@@ -29,228 +66,565 @@ class HFPage extends Page {
     }
 
     protected void initDefaults() {
-        this.setShortValue((short)0, 0);
-        this.setShortValue((short)1024, 2);
-        this.setShortValue((short)1004, 4);
-        this.setShortValue((short)0, 6);
-        this.setIntValue(-1, 8);
-        this.setIntValue(-1, 12);
-        this.setIntValue(-1, 16);
+        this.setShort((short)0, SLOT_CNT);
+        this.setShort((short)0, LIVE_CNT);
+        this.setInt(GlobalConst.PAGE_SIZE, USED_PTR);
+        this.setInt(GlobalConst.PAGE_SIZE - HEADER_SIZE, FREE_SPACE);
+        this.setInt(0, OCCUPANCY);
+        this.setInt(-1, NEXT_PAGE);
+        this.setInt(-1, CUR_PAGE);
+        this.setShort((short)-1, FREE_SLOT);
     }
 
     public short getSlotCount() {
-        return this.getShortValue(0);
+        return this.getShort(SLOT_CNT);
     }
 
-    public short getFreeSpace() {
-        return this.getShortValue(4);
+    public int getFreeSpace() {
+        return this.getInt(FREE_SPACE);
     }
 
-    public short getType() {
-        return this.getShortValue(6);
+    /**
+     * Gets the number of slots in use, forwarding stubs included.
+     */
+    public short getLiveSlotCount() {
+        return this.getShort(LIVE_CNT);
     }
 
-    public void setType(short type) {
-        this.setShortValue(type, 6);
+    public PageId getNextPage() {
+        return new PageId(this.getInt(NEXT_PAGE));
     }
 
-    public PageId getPrevPage() {
-        return new PageId(this.getIntValue(8));
+    public void setNextPage(PageId pageno) {
+        this.setInt(pageno.pid, NEXT_PAGE);
     }
 
-    public void setPrevPage(PageId pageno) {
-        this.setIntValue(pageno.pid, 8);
+    public PageId getCurPage() {
+        return new PageId(this.getInt(CUR_PAGE));
     }
 
-    public PageId getNextPage() {
-        return new PageId(this.getIntValue(12));
+    public void setCurPage(PageId pageno) {
+        this.setInt(pageno.pid, CUR_PAGE);
     }
 
-    public void setNextPage(PageId pageno) {
-        this.setIntValue(pageno.pid, 12);
+    public int getSlotLength(int slotno) {
+        int length = this.rawLength(slotno);
+        if (length == -1) {
+            return length;
+        } else {
+            return (length & LENGTH_MASK) - ((length & MOVED) != 0 ? RID_SIZE : 0);
+        }
     }
 
-    public PageId getCurPage() {
-        return new PageId(this.getIntValue(16));
+    public int getSlotOffset(int slotno) {
+        int offset = this.rawOffset(slotno);
+        return this.isMoved(slotno) ? offset + RID_SIZE : offset;
     }
 
-    public void setCurPage(PageId pageno) {
-        this.setIntValue(pageno.pid, 16);
+    /**
+     * Gets the number of bytes the slot takes up in the record area.
+     */
+    protected int getStoredLength(int slotno) {
+        int length = this.rawLength(slotno);
+        return length == -1 ? length : storedLength(length & LENGTH_MASK);
+    }
+
+    /**
+     * Gets the number of bytes a record of the given length takes up in the
+     * record area.
+     */
+    protected static int storedLength(int length) {
+        return Math.max(length, HEAD_SIZE);
+    }
+
+    /**
+     * Gets the free space a page needs to take a new record of the given
+     * length, counting its slot.
+     */
+    protected static int spaceNeeded(int length) {
+        return storedLength(length) + SLOT_SIZE;
     }
 
-    public short getSlotLength(int slotno) {
-        return this.getShortValue(20 + slotno * 4);
+    /**
+     * Returns true if the slot is a stub for a record stored elsewhere.
+     */
+    public boolean isForwarded(int slotno) {
+        int length = this.rawLength(slotno);
+        return length != -1 && (length & FORWARD) != 0;
     }
 
-    public short getSlotOffset(int slotno) {
-        return this.getShortValue(20 + slotno * 4 + 2);
+    /**
+     * Returns true if the slot holds a record moved here from another slot.
+     */
+    public boolean isMoved(int slotno) {
+        int length = this.rawLength(slotno);
+        return length != -1 && (length & MOVED) != 0;
+    }
+
+    /**
+     * Returns true if the slot is the head of a record stored in overflow
+     * pages.
+     */
+    public boolean isLarge(int slotno) {
+        int length = this.rawLength(slotno);
+        return length != -1 && (length & LARGE) != 0;
+    }
+
+    /**
+     * Gets the length of the large record whose head is in the slot.
+     */
+    public int getLargeLength(int slotno) {
+        return this.getInt(this.rawOffset(slotno));
+    }
+
+    /**
+     * Gets the first overflow page of the large record whose head is in the
+     * slot.
+     */
+    public PageId getOverflowPage(int slotno) {
+        return new PageId(this.getInt(this.rawOffset(slotno) + 4));
+    }
+
+    /**
+     * Returns true if the slot holds the record moved here from the given
+     * RID. A stub read before this page was latched may be out of date, and
+     * its slot may since have been freed or reused.
+     */
+    public boolean isMovedFrom(int slotno, RID home) {
+        if (slotno < 0 || slotno >= this.getShort(SLOT_CNT) || !this.isMoved(slotno)) {
+            return false;
+        }
+
+        int offset = this.rawOffset(slotno);
+        return this.getInt(offset) == home.pageno.pid && this.getShort(offset + 4) == home.slotno;
+    }
+
+    /**
+     * Copies the RID a stub points to, or the RID a moved record was moved
+     * from, into the given RID.
+     */
+    public void getLinkedRID(int slotno, RID out) {
+        int offset = this.rawOffset(slotno);
+        out.pageno.pid = this.getInt(offset);
+        out.slotno = this.getShort(offset + 4);
     }
 
     public RID insertRecord(byte[] record) {
-        short recLength = (short)record.length;
-        int spaceNeeded = recLength + 4;
-        short freeSpace = this.getShortValue(4);
-        if (spaceNeeded > freeSpace) {
+        return this.insertRecord(record, 0, record.length);
+    }
+
+    public RID insertRecord(byte[] record, int offset, int length) {
+        int slotno = this.allocateRecord(length);
+        if (slotno == -1) {
             return null;
         } else {
-            short slotCnt = this.getShortValue(0);
-
-            short i;
-            for(i = 0; i < slotCnt; ++i) {
-                short length = this.getSlotLength(i);
-                if (length == -1) {
-                    break;
-                }
+            System.arraycopy(record, offset, this.data, this.getSlotOffset(slotno), length);
+            return new RID(new PageId(this.getInt(CUR_PAGE)), slotno);
+        }
+    }
+
+    public RID insertRecord(ByteBuffer record, int length) {
+        int slotno = this.allocateRecord(length);
+        if (slotno == -1) {
+            return null;
+        } else {
+            record.get(this.data, this.getSlotOffset(slotno), length);
+            return new RID(new PageId(this.getInt(CUR_PAGE)), slotno);
+        }
+    }
+
+    protected int allocateRecord(int length) {
+        return this.allocateRecord(length, 0);
+    }
+
+    protected int allocateRecord(int length, int flags) {
+        int recLength = storedLength(length);
+        int spaceNeeded = recLength + SLOT_SIZE;
+        int freeSpace = this.getInt(FREE_SPACE);
+        if (spaceNeeded > freeSpace) {
+            return -1;
+        } else {
+            short i = this.getShort(FREE_SLOT);
+            int contiguous = this.getInt(USED_PTR) - (HEADER_SIZE + this.getShort(SLOT_CNT) * SLOT_SIZE);
+            if (contiguous < (i == -1 ? spaceNeeded : recLength)) {
+                this.compact();
             }
 
-            if (i == slotCnt) {
-                freeSpace = (short)(freeSpace - spaceNeeded);
-                this.setShortValue(freeSpace, 4);
+            if (i == -1) {
+                short slotCnt = this.getShort(SLOT_CNT);
+                i = slotCnt;
+                this.setInt(freeSpace - spaceNeeded, FREE_SPACE);
                 ++slotCnt;
-                this.setShortValue(slotCnt, 0);
+                this.setShort(slotCnt, SLOT_CNT);
             } else {
-                freeSpace -= recLength;
-                this.setShortValue(freeSpace, 4);
+                this.setShort((short)this.rawOffset(i), FREE_SLOT);
+                this.setInt(freeSpace - recLength, FREE_SPACE);
             }
 
-            short usedPtr = this.getShortValue(2);
-            usedPtr -= recLength;
-            this.setShortValue(usedPtr, 2);
-            int slotpos = 20 + i * 4;
-            this.setShortValue(recLength, slotpos);
-            this.setShortValue(usedPtr, slotpos + 2);
-            System.arraycopy(record, 0, this.data, usedPtr, recLength);
-            return new RID(new PageId(this.getIntValue(16)), i);
+            int usedPtr = this.getInt(USED_PTR) - recLength;
+            this.setInt(usedPtr, USED_PTR);
+            this.setSlot(i, length | flags, usedPtr);
+
+            this.setShort((short)(this.getShort(LIVE_CNT) + 1), LIVE_CNT);
+            this.setInt(this.getInt(OCCUPANCY) | 1 << i / SLOT_GROUP, OCCUPANCY);
+            return i;
+        }
+    }
+
+    /**
+     * Inserts a record that has been moved from the given RID, or returns
+     * null if there isn't room for it along with the RID it's prefixed with.
+     */
+    public RID insertMovedRecord(byte[] record, int length, RID home) {
+        int slotno = this.allocateRecord(length + RID_SIZE, MOVED);
+        if (slotno == -1) {
+            return null;
+        } else {
+            this.setLink(slotno, home);
+            System.arraycopy(record, 0, this.data, this.getSlotOffset(slotno), length);
+            return new RID(new PageId(this.getInt(CUR_PAGE)), slotno);
+        }
+    }
+
+    /**
+     * Inserts the head of a large record, or returns null if there isn't room
+     * for it.
+     */
+    public RID insertLargeRecord(int length, PageId first) {
+        int slotno = this.allocateRecord(HEAD_SIZE, LARGE);
+        if (slotno == -1) {
+            return null;
+        } else {
+            this.setHead(slotno, length, first);
+            return new RID(new PageId(this.getInt(CUR_PAGE)), slotno);
         }
     }
 
     public byte[] selectRecord(RID rid) {
-        short length = this.checkRID(rid);
-        short offset = this.getSlotOffset(rid.slotno);
+        int length = this.checkRID(rid);
+        int offset = this.getSlotOffset(rid.slotno);
         byte[] record = new byte[length];
         System.arraycopy(this.data, offset, record, 0, length);
         return record;
     }
 
-    public void updateRecord(RID rid, Tuple record) {
-        short length = this.checkRID(rid);
-        if (record.getLength() != length) {
-            throw new IllegalArgumentException("Invalid record size");
+    /**
+     * Replaces the record, which may change size. A record that grows is
+     * moved within the page, compacting it first if need be; a moved record
+     * keeps its link back to its stub.
+     *
+     * @return false if the page doesn't have room for the new record
+     */
+    public boolean updateRecord(RID rid, Tuple record) {
+        this.checkRID(rid);
+        boolean moved = this.isMoved(rid.slotno);
+        int prefix = moved ? RID_SIZE : 0;
+        RID home = new RID();
+        if (moved) {
+            this.getLinkedRID(rid.slotno, home);
+        }
+
+        if (!this.resize(rid.slotno, record.getLength() + prefix, moved ? MOVED : 0)) {
+            return false;
+        } else {
+            if (moved) {
+                this.setLink(rid.slotno, home);
+            }
+
+            System.arraycopy(record.data, 0, this.data, this.getSlotOffset(rid.slotno), record.getLength());
+            return true;
+        }
+    }
+
+    /**
+     * Turns the record's slot into a stub that points to the given RID,
+     * giving up the rest of the record's space.
+     */
+    public void setForward(int slotno, RID target) {
+        this.resize(slotno, RID_SIZE, FORWARD);
+        this.setLink(slotno, target);
+    }
+
+    /**
+     * Turns the record's slot into the head of a large record, giving up the
+     * rest of the record's space.
+     */
+    public void setLarge(int slotno, int length, PageId first) {
+        this.resize(slotno, HEAD_SIZE, LARGE);
+        this.setHead(slotno, length, first);
+    }
+
+    /**
+     * Gives a slot in use a new length and kind, leaving its bytes in place
+     * if it shrinks and moving it to new space if it grows. The bytes of a
+     * record that grows are not carried over.
+     */
+    protected boolean resize(int slotno, int newLength, int flags) {
+        int oldLength = this.getStoredLength(slotno);
+        int length = storedLength(newLength);
+        int freeSpace = this.getInt(FREE_SPACE);
+        if (length <= oldLength) {
+            this.setSlot(slotno, newLength | flags, this.rawOffset(slotno));
+            this.setInt(freeSpace + oldLength - length, FREE_SPACE);
+            return true;
+        } else if (length - oldLength > freeSpace) {
+            return false;
         } else {
-            short offset = this.getSlotOffset(rid.slotno);
-            System.arraycopy(record.data, 0, this.data, offset, length);
+            // Free the old space first, so compaction can reclaim it
+            this.setInt(-1, HEADER_SIZE + slotno * SLOT_SIZE);
+            int contiguous = this.getInt(USED_PTR) - (HEADER_SIZE + this.getShort(SLOT_CNT) * SLOT_SIZE);
+            if (contiguous < length) {
+                this.compact();
+            }
+
+            int usedPtr = this.getInt(USED_PTR) - length;
+            this.setInt(usedPtr, USED_PTR);
+            this.setSlot(slotno, newLength | flags, usedPtr);
+            this.setInt(freeSpace + oldLength - length, FREE_SPACE);
+            return true;
         }
     }
 
+    private int rawLength(int slotno) {
+        return this.getInt(HEADER_SIZE + slotno * SLOT_SIZE);
+    }
+
+    private int rawOffset(int slotno) {
+        return this.getInt(HEADER_SIZE + slotno * SLOT_SIZE + 4);
+    }
+
+    private void setSlot(int slotno, int length, int offset) {
+        this.setInt(length, HEADER_SIZE + slotno * SLOT_SIZE);
+        this.setInt(offset, HEADER_SIZE + slotno * SLOT_SIZE + 4);
+    }
+
+    private void setHead(int slotno, int length, PageId first) {
+        int offset = this.rawOffset(slotno);
+        this.setInt(length, offset);
+        this.setInt(first.pid, offset + 4);
+    }
+
+    private void setLink(int slotno, RID rid) {
+        int offset = this.rawOffset(slotno);
+        this.setInt(rid.pageno.pid, offset);
+        this.setShort((short)rid.slotno, offset + 4);
+    }
+
     public void deleteRecord(RID rid) {
-        short length = this.checkRID(rid);
-        short offset = this.getSlotOffset(rid.slotno);
-        short usedPtr = this.getShortValue(2);
-        short newSpot = (short)(usedPtr + length);
-        short size = (short)(offset - usedPtr);
-        System.arraycopy(this.data, usedPtr, this.data, newSpot, size);
-        short slotCnt = this.getShortValue(0);
-        int i = 0;
-
-        int n;
-        for(n = 20; i < slotCnt; n += 4) {
+        this.checkRID(rid);
+        int length = this.getStoredLength(rid.slotno);
+        short slotCnt = this.getShort(SLOT_CNT);
+        this.setInt(this.getInt(FREE_SPACE) + length, FREE_SPACE);
+        this.setSlot(rid.slotno, -1, this.getShort(FREE_SLOT));
+        this.setShort((short)rid.slotno, FREE_SLOT);
+
+        this.setShort((short)(this.getShort(LIVE_CNT) - 1), LIVE_CNT);
+        int group = rid.slotno / SLOT_GROUP;
+        int end = Math.min(slotCnt, (group + 1) * SLOT_GROUP);
+        int i = group * SLOT_GROUP;
+        while(i < end && this.getSlotLength(i) == -1) {
+            ++i;
+        }
+
+        if (i == end) {
+            this.setInt(this.getInt(OCCUPANCY) & ~(1 << group), OCCUPANCY);
+        }
+    }
+
+    /**
+     * Moves the records together at the end of the page, so all of the free
+     * space is in one piece after the slot directory. Slots keep their
+     * numbers, so RIDs are unaffected.
+     */
+    protected void compact() {
+        short slotCnt = this.getShort(SLOT_CNT);
+        long[] order = new long[slotCnt];
+        int n = 0;
+
+        for(int i = 0; i < slotCnt; ++i) {
             if (this.getSlotLength(i) != -1) {
-                short chkoffset = this.getSlotOffset(i);
-                if (chkoffset < offset) {
-                    chkoffset += length;
-                    this.setShortValue(chkoffset, n + 2);
-                }
+                order[n++] = (long)this.rawOffset(i) << 16 | i;
             }
+        }
 
-            ++i;
+        // Move the highest record first, so no record is overwritten before
+        // it has been moved
+        Arrays.sort(order, 0, n);
+        int usedPtr = GlobalConst.PAGE_SIZE;
+
+        for(int k = n - 1; k >= 0; --k) {
+            int i = (int)(order[k] & 0xFFFF);
+            int length = this.getStoredLength(i);
+            usedPtr -= length;
+            System.arraycopy(this.data, (int)(order[k] >> 16), this.data, usedPtr, length);
+            this.setInt(usedPtr, HEADER_SIZE + i * SLOT_SIZE + 4);
         }
 
-        this.setShortValue(newSpot, 2);
-        short freeSpace = this.getShortValue(4);
-        freeSpace += length;
-        this.setShortValue(freeSpace, 4);
-        n = 20 + rid.slotno * 4;
-        this.setShortValue((short)-1, n);
-        this.setShortValue((short)0, n + 2);
+        this.setInt(usedPtr, USED_PTR);
     }
 
-    public RID firstRecord() {
-        short slotCnt = this.getShortValue(0);
+    /**
+     * Gets a slot's whole length field, kind bits included, or -1 if the slot
+     * is empty or past the end of the slot directory.
+     */
+    int getSlotField(int slotno) {
+        return slotno < this.getShort(SLOT_CNT) ? this.rawLength(slotno) : -1;
+    }
 
-        int i;
-        for(i = 0; i < slotCnt; ++i) {
-            short length = this.getSlotLength(i);
-            if (length != -1) {
-                break;
+    /**
+     * Copies out every byte a slot in use takes up in the record area,
+     * including a moved record's RID prefix.
+     */
+    byte[] getStoredBytes(int slotno) {
+        int offset = this.rawOffset(slotno);
+        return Arrays.copyOfRange(this.data, offset, offset + this.getStoredLength(slotno));
+    }
+
+    /**
+     * Empties a slot if it's in use, extending the slot directory with empty
+     * slots if the slot is past its end. Returns false if there isn't room.
+     */
+    boolean clearSlot(int slotno) {
+        short slotCnt = this.getShort(SLOT_CNT);
+        if (slotno < slotCnt) {
+            if (this.rawLength(slotno) != -1) {
+                this.deleteRecord(new RID(this.getCurPage(), slotno));
             }
+            return true;
+        }
+
+        int newSlots = slotno + 1 - slotCnt;
+        int freeSpace = this.getInt(FREE_SPACE);
+        if (newSlots * SLOT_SIZE > freeSpace) {
+            return false;
         }
 
-        return i == slotCnt ? null : new RID(new PageId(this.getIntValue(16)), i);
+        // Compact before the slot directory grows over the records
+        if (this.getInt(USED_PTR) - HEADER_SIZE - slotCnt * SLOT_SIZE < newSlots * SLOT_SIZE) {
+            this.compact();
+        }
+
+        for (int i = slotCnt; i <= slotno; i++) {
+            this.setSlot(i, -1, this.getShort(FREE_SLOT));
+            this.setShort((short)i, FREE_SLOT);
+        }
+        this.setShort((short)(slotno + 1), SLOT_CNT);
+        this.setInt(freeSpace - newSlots * SLOT_SIZE, FREE_SPACE);
+        return true;
     }
 
-    public boolean hasNext(RID curRid) {
-        int curPid = this.getIntValue(16);
-        short slotCnt = this.getShortValue(0);
-        if (curRid.pageno.pid == curPid && curRid.slotno >= 0 && curRid.slotno <= slotCnt) {
-            int i;
-            for(i = curRid.slotno + 1; i < slotCnt; ++i) {
-                short length = this.getSlotLength(i);
-                if (length != -1) {
-                    break;
-                }
-            }
+    /**
+     * Fills an empty slot with the given length field and stored bytes, as
+     * getSlotField and getStoredBytes gave them. Returns false if there isn't
+     * room.
+     */
+    boolean restoreSlot(int slotno, int field, byte[] bytes) {
+        int freeSpace = this.getInt(FREE_SPACE);
+        if (bytes.length > freeSpace) {
+            return false;
+        }
+
+        int contiguous = this.getInt(USED_PTR) - (HEADER_SIZE + this.getShort(SLOT_CNT) * SLOT_SIZE);
+        if (contiguous < bytes.length) {
+            this.compact();
+        }
 
-            return i != slotCnt;
+        // Take the slot out of the free-slot list
+        short prev = -1;
+        short i = this.getShort(FREE_SLOT);
+        while (i != slotno) {
+            prev = i;
+            i = (short)this.rawOffset(i);
+        }
+        if (prev == -1) {
+            this.setShort((short)this.rawOffset(slotno), FREE_SLOT);
         } else {
-            throw new IllegalArgumentException("Invalid RID");
+            this.setSlot(prev, -1, this.rawOffset(slotno));
         }
+
+        int usedPtr = this.getInt(USED_PTR) - bytes.length;
+        this.setInt(usedPtr, USED_PTR);
+        this.setSlot(slotno, field, usedPtr);
+        System.arraycopy(bytes, 0, this.data, usedPtr, bytes.length);
+
+        this.setInt(freeSpace - bytes.length, FREE_SPACE);
+        this.setShort((short)(this.getShort(LIVE_CNT) + 1), LIVE_CNT);
+        this.setInt(this.getInt(OCCUPANCY) | 1 << slotno / SLOT_GROUP, OCCUPANCY);
+        return true;
+    }
+
+    public RID firstRecord() {
+        int i = this.nextSlot(-1);
+        return i == -1 ? null : new RID(new PageId(this.getInt(CUR_PAGE)), i);
+    }
+
+    public boolean hasNext(RID curRid) {
+        this.checkCursor(curRid);
+        return this.nextSlot(curRid.slotno) != -1;
     }
 
     public RID nextRecord(RID curRid) {
-        int curPid = this.getIntValue(16);
-        short slotCnt = this.getShortValue(0);
-        if (curRid.pageno.pid == curPid && curRid.slotno >= 0 && curRid.slotno <= slotCnt) {
-            int i;
-            for(i = curRid.slotno + 1; i < slotCnt; ++i) {
-                short length = this.getSlotLength(i);
-                if (length != -1) {
-                    break;
-                }
-            }
+        this.checkCursor(curRid);
+        int i = this.nextSlot(curRid.slotno);
+        return i == -1 ? null : new RID(new PageId(this.getInt(CUR_PAGE)), i);
+    }
 
-            return i == slotCnt ? null : new RID(new PageId(this.getIntValue(16)), i);
-        } else {
-            throw new IllegalArgumentException("Invalid RID");
+    /**
+     * Returns the first slot after the given one (pass -1 to start from the
+     * beginning) that holds a record, or -1 if there is none. Unlike
+     * nextRecord, this allocates nothing.
+     */
+    public int nextSlot(int slotno) {
+        short slotCnt = this.getShort(SLOT_CNT);
+        int occupancy = this.getInt(OCCUPANCY);
+
+        int i = slotno + 1;
+        while(i < slotCnt) {
+            if ((occupancy & 1 << i / SLOT_GROUP) == 0) {
+                i = (i / SLOT_GROUP + 1) * SLOT_GROUP;
+            } else if (this.getSlotLength(i) == -1 || this.isForwarded(i)) {
+                ++i;
+            } else {
+                return i;
+            }
         }
+
+        return -1;
     }
 
     public void print() {
-        short slotCnt = this.getShortValue(0);
+        short slotCnt = this.getShort(SLOT_CNT);
         System.out.println("HFPage:");
         System.out.println("-------");
-        System.out.println("  curPage   = " + this.getIntValue(16));
-        System.out.println("  prevPage  = " + this.getIntValue(8));
-        System.out.println("  nextPage  = " + this.getIntValue(12));
+        System.out.println("  curPage   = " + this.getInt(CUR_PAGE));
+        System.out.println("  nextPage  = " + this.getInt(NEXT_PAGE));
         System.out.println("  slotCnt   = " + slotCnt);
-        System.out.println("  usedPtr   = " + this.getShortValue(2));
-        System.out.println("  freeSpace = " + this.getShortValue(4));
-        System.out.println("  pageType  = " + this.getShortValue(6));
+        System.out.println("  usedPtr   = " + this.getInt(USED_PTR));
+        System.out.println("  freeSpace = " + this.getInt(FREE_SPACE));
+        System.out.println("  liveCnt   = " + this.getShort(LIVE_CNT));
+        System.out.println("  freeSlot  = " + this.getShort(FREE_SLOT));
         System.out.println("-------");
-        int i = 0;
 
-        for(int n = 20; i < slotCnt; n += 4) {
-            System.out.println("slot #" + i + " offset = " + this.getShortValue(n));
-            System.out.println("slot #" + i + " length = " + this.getShortValue(n + 2));
-            ++i;
+        for(int i = 0; i < slotCnt; ++i) {
+            System.out.println("slot #" + i + " offset = " + this.rawOffset(i));
+            System.out.println("slot #" + i + " length = " + this.rawLength(i));
         }
 
     }
 
-    protected short checkRID(RID rid) {
-        int curPid = this.getIntValue(16);
-        short slotCnt = this.getShortValue(0);
-        if (rid.pageno.pid == curPid && rid.slotno >= 0 && rid.slotno <= slotCnt) {
-            short recLen = this.getSlotLength(rid.slotno);
+    protected void checkCursor(RID curRid) {
+        int curPid = this.getInt(CUR_PAGE);
+        short slotCnt = this.getShort(SLOT_CNT);
+        if (curRid.pageno.pid != curPid || curRid.slotno < 0 || curRid.slotno > slotCnt) {
+            throw new IllegalArgumentException("Invalid RID");
+        }
+    }
+
+    protected int checkRID(RID rid) {
+        int curPid = this.getInt(CUR_PAGE);
+        short slotCnt = this.getShort(SLOT_CNT);
+        if (rid.pageno.pid == curPid && rid.slotno >= 0 && rid.slotno < slotCnt) {
+            int recLen = this.getSlotLength(rid.slotno);
             if (recLen == -1) {
                 throw new IllegalArgumentException("Empty slot");
             } else {
@@ -0,0 +1,99 @@
+package heap;
+
+import global.GlobalConst;
+import global.Page;
+import global.PageId;
+
+/**
+ * The header page of a heap file, named by the file entry. It points to the
+ * root of the file's directory and keeps running statistics about the file so
+ * they're available without a scan: the record count, the bytes held by live
+ * records, the dead bytes (slot entries and other space on data pages that is
+ * neither free nor live record data), the number of data pages and the
+ * number of overflow pages holding large records. It also records the page
+ * size the file was created with, since the layout of every other page
+ * depends on it.
+ */
+class HeaderPage extends HeapPage {
+    protected static final int DIR_PAGE = 0;
+    protected static final int REC_CNT = 4;
+    protected static final int PAGE_CNT = 8;
+    protected static final int LIVE_BYTES = 12;
+    protected static final int DEAD_BYTES = 20;
+    protected static final int OVERFLOW_CNT = 28;
+    protected static final int PAGE_BYTES = 32;
+    protected static final int HEADER_SIZE = 36;
+
+    public HeaderPage() {
+        this.initDefaults();
+    }
+
+    public HeaderPage(Page page) {
+        super(page.getData());
+    }
+
+    protected void initDefaults() {
+        this.setInt(-1, DIR_PAGE);
+        this.setInt(0, REC_CNT);
+        this.setInt(0, PAGE_CNT);
+        this.setLong(0, LIVE_BYTES);
+        this.setLong(0, DEAD_BYTES);
+        this.setInt(0, OVERFLOW_CNT);
+        this.setInt(GlobalConst.PAGE_SIZE, PAGE_BYTES);
+    }
+
+    public PageId getDirPage() {
+        return new PageId(this.getInt(DIR_PAGE));
+    }
+
+    public void setDirPage(PageId pageno) {
+        this.setInt(pageno.pid, DIR_PAGE);
+    }
+
+    public int getRecCnt() {
+        return this.getInt(REC_CNT);
+    }
+
+    public void setRecCnt(int recCnt) {
+        this.setInt(recCnt, REC_CNT);
+    }
+
+    public int getPageCnt() {
+        return this.getInt(PAGE_CNT);
+    }
+
+    public void setPageCnt(int pageCnt) {
+        this.setInt(pageCnt, PAGE_CNT);
+    }
+
+    public long getLiveBytes() {
+        return this.getLong(LIVE_BYTES);
+    }
+
+    public void setLiveBytes(long liveBytes) {
+        this.setLong(liveBytes, LIVE_BYTES);
+    }
+
+    public long getDeadBytes() {
+        return this.getLong(DEAD_BYTES);
+    }
+
+    public void setDeadBytes(long deadBytes) {
+        this.setLong(deadBytes, DEAD_BYTES);
+    }
+
+    public int getOverflowCnt() {
+        return this.getInt(OVERFLOW_CNT);
+    }
+
+    public void setOverflowCnt(int overflowCnt) {
+        this.setInt(overflowCnt, OVERFLOW_CNT);
+    }
+
+    /**
+     * Gets the page size the file was created with, in bytes.
+     */
+    public int getPageSize() {
+        return this.getInt(PAGE_BYTES);
+    }
+}
@@ -0,0 +1,333 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * The directory of a heap file: a chain of DirPages, rooted at the file entry,
+ * listing every data page of the file with its free bytes and record count.
+ * Directory pages are loaded lazily, in chain order, the first time a lookup
+ * needs them; loaded entries are indexed in memory and fed to the file's
+ * free-space map.
+ *
+ * Looking up a loaded entry takes no lock: the index is concurrent, and an
+ * entry is published only once its directory page is listed and its page is
+ * in the free-space map, which has a lock of its own. Loading more of the
+ * chain, adding a page and freeing the directory are synchronized on the
+ * directory. Each directory page is read and written under its latch, one
+ * of DIR_LATCHES monitors picked by page id, so updatePage, which every
+ * insert, update and delete makes, only waits for changes to directory
+ * pages sharing its latch, never for a load or an append elsewhere.
+ */
+class HeapDirectory implements GlobalConst {
+
+    /** Number of monitors the directory pages' latches are striped over. */
+    static final int DIR_LATCHES = 16;
+
+    private final PageId rootId;
+    private PageId nextId;
+    private final CopyOnWriteArrayList<PageId> dirPageIds;
+    private final ConcurrentHashMap<PageId, Integer> entries;
+    private final FreeSpaceMap fsm;
+    private final Object[] dirLatches;
+
+    private HeapDirectory(PageId rootId) {
+        this.rootId = rootId;
+        this.nextId = rootId;
+        this.dirPageIds = new CopyOnWriteArrayList<>();
+        this.entries = new ConcurrentHashMap<>();
+        this.fsm = new FreeSpaceMap();
+        this.dirLatches = new Object[DIR_LATCHES];
+        for (int i = 0; i < DIR_LATCHES; i++) {
+            dirLatches[i] = new Object();
+        }
+    }
+
+    /**
+     * Creates an empty directory on a newly allocated root page.
+     */
+    static HeapDirectory create() throws ChainException {
+        DirPage root = new DirPage();
+        PageId rootId = newDirPage(root);
+
+        root.setLastPage(rootId);
+        BufferPool.logPage(rootId, root);
+        BufferPool.unpinPage(rootId, true);
+
+        return new HeapDirectory(rootId);
+    }
+
+    /**
+     * Opens the directory rooted at the given page; nothing is read until a
+     * lookup needs it.
+     */
+    static HeapDirectory open(PageId rootId) {
+        return new HeapDirectory(rootId);
+    }
+
+    /**
+     * Returns the id of the root directory page.
+     */
+    PageId getRootId() {
+        return rootId;
+    }
+
+    /**
+     * Returns true if the given page is a data page of this file. A page whose
+     * entry is already loaded is found without taking the directory's lock.
+     */
+    boolean contains(PageId pageId) throws ChainException {
+        if (entries.containsKey(pageId)) {
+            return true;
+        }
+
+        synchronized (this) {
+            while (!entries.containsKey(pageId)) {
+                if (!loadNext()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds a data page with at least the given number of free bytes that the
+     * given test accepts, loading more of the directory as needed; returns
+     * null if no such page has room. The test mustn't block, but may try
+     * the page's latch. The directory's lock is only taken to load more.
+     */
+    PageId findPage(int spaceNeeded, Predicate<PageId> accept) throws ChainException {
+        PageId pageId = fsm.findPage(spaceNeeded, accept);
+        if (pageId != null) {
+            return pageId;
+        }
+
+        synchronized (this) {
+            while (pageId == null && loadNext()) {
+                pageId = fsm.findPage(spaceNeeded, accept);
+            }
+        }
+
+        return pageId;
+    }
+
+    /**
+     * Appends an entry for a newly allocated data page, returning the id of
+     * the page that was last in the file before it (or null if none was).
+     */
+    synchronized PageId addPage(PageId pageId, int freeBytes, int recCnt) throws ChainException {
+        // Entry numbers are only known once the whole chain is in memory
+        while (nextId.pid != -1) {
+            loadNext();
+        }
+
+        // With the chain loaded, the last directory page is the last listed
+        PageId lastId = dirPageIds.get(dirPageIds.size() - 1);
+        PageId prevId;
+        int entryno;
+
+        synchronized (latchOf(rootId)) {
+            synchronized (latchOf(lastId)) {
+                DirPage root = new DirPage();
+                DirPage last = new DirPage();
+
+                BufferPool.pinPage(rootId, root, false);
+                if (lastId.pid == rootId.pid) {
+                    last = root;
+                } else {
+                    BufferPool.pinPage(lastId, last, false);
+                }
+
+                short entryCnt = last.getEntryCount();
+                prevId = entryCnt > 0 ? last.getPageId(entryCnt - 1) : null;
+
+                entryno = last.addEntry(pageId, freeBytes, recCnt);
+                if (entryno == -1) {
+                    // Chain a new directory page once the last one fills up
+                    DirPage next = new DirPage();
+                    PageId newId = newDirPage(next);
+                    next.addEntry(pageId, freeBytes, recCnt);
+                    BufferPool.logPage(newId, next);
+                    BufferPool.unpinPage(newId, true);
+
+                    last.setNextPage(newId);
+                    root.setLastPage(newId);
+                    dirPageIds.add(newId);
+                    entryno = 0;
+                }
+
+                // The pages changed are logged whole, so the chain is redone intact;
+                // the entries updatePage changes are put right by HeapLog's redo
+                if (lastId.pid != rootId.pid) {
+                    BufferPool.logPage(lastId, last);
+                    BufferPool.unpinPage(lastId, true);
+                }
+                BufferPool.logPage(rootId, root);
+                BufferPool.unpinPage(rootId, true);
+            }
+        }
+
+        fsm.addPage(pageId, freeBytes);
+        entries.put(pageId, (dirPageIds.size() - 1) * DirPage.MAX_ENTRIES + entryno);
+
+        return prevId;
+    }
+
+    /**
+     * Records a data page's new free bytes and adjusts its record count by the
+     * given amount, loading the directory as far as the page's entry if it
+     * isn't in memory yet. Only the entry's directory page is latched.
+     *
+     * @throws ChainException if the page isn't a data page of this file
+     */
+    void updatePage(PageId pageId, int freeBytes, int recDelta) throws ChainException {
+        if (!contains(pageId)) {
+            throw new ChainException(null, "HeapDirectory.updatePage: Page " + pageId.pid + " is not in the directory");
+        }
+
+        int entry = entries.get(pageId);
+        PageId dirId = dirPageIds.get(entry / DirPage.MAX_ENTRIES);
+        int entryno = entry % DirPage.MAX_ENTRIES;
+        DirPage dirPage = new DirPage();
+
+        synchronized (latchOf(dirId)) {
+            BufferPool.pinPage(dirId, dirPage, false);
+            dirPage.setEntry(entryno, freeBytes, dirPage.getRecCnt(entryno) + recDelta);
+            BufferPool.unpinPage(dirId, true);
+        }
+
+        fsm.updatePage(pageId, freeBytes);
+    }
+
+    /**
+     * Reads every entry of the directory, in file order, straight from the
+     * directory pages; recCnts may be null if the counts aren't wanted.
+     */
+    void readEntries(List<PageId> pageIds, List<Integer> recCnts) throws ChainException {
+        PageId dirId = rootId;
+        while (dirId.pid != -1) {
+            dirId = readEntries(dirId, pageIds, recCnts);
+        }
+    }
+
+    /**
+     * Reads the entries of one directory page under its latch, returning the
+     * id of the next one (or an invalid id after the last); recCnts may be
+     * null.
+     */
+    PageId readEntries(PageId dirId, List<PageId> pageIds, List<Integer> recCnts) throws ChainException {
+        DirPage dirPage = new DirPage();
+        PageId nextDirId;
+
+        synchronized (latchOf(dirId)) {
+            BufferPool.pinPage(dirId, dirPage, false);
+            short entryCnt = dirPage.getEntryCount();
+            for (int i = 0; i < entryCnt; i++) {
+                pageIds.add(dirPage.getPageId(i));
+                if (recCnts != null) {
+                    recCnts.add((int)dirPage.getRecCnt(i));
+                }
+            }
+            nextDirId = dirPage.getNextPage();
+            BufferPool.unpinPage(dirId, false);
+        }
+
+        return nextDirId;
+    }
+
+    /**
+     * Frees every data page listed in the directory, then the directory pages.
+     */
+    synchronized void freePages() throws ChainException {
+        DirPage dirPage = new DirPage();
+        PageId dirId = rootId;
+
+        while (dirId.pid != -1) {
+            BufferPool.pinPage(dirId, dirPage, false);
+            short entryCnt = dirPage.getEntryCount();
+            PageId[] pageIds = new PageId[entryCnt];
+            for (int i = 0; i < entryCnt; i++) {
+                pageIds[i] = dirPage.getPageId(i);
+            }
+            PageId nextDirId = dirPage.getNextPage();
+            BufferPool.unpinPage(dirId, false);
+
+            try {
+                for (PageId pageId : pageIds) {
+                    BufferPool.freePage(pageId);
+                }
+                BufferPool.freePage(dirId);
+            } catch (Exception e) {
+                throw new ChainException(e, "HeapDirectory.freePages: Failed to free page");
+            }
+
+            dirId = nextDirId;
+        }
+
+        nextId = new PageId(-1);
+        dirPageIds.clear();
+        entries.clear();
+        fsm.clear();
+    }
+
+    /**
+     * Loads the next directory page not yet in memory, returning false if the
+     * whole chain is already loaded. The page is listed and its pages added
+     * to the free-space map before their entries are published.
+     */
+    private boolean loadNext() throws ChainException {
+        if (nextId.pid == -1) {
+            return false;
+        }
+
+        DirPage dirPage = new DirPage();
+        PageId dirId = nextId;
+        int base = dirPageIds.size() * DirPage.MAX_ENTRIES;
+        PageId[] pageIds;
+
+        synchronized (latchOf(dirId)) {
+            BufferPool.pinPage(dirId, dirPage, false);
+            short entryCnt = dirPage.getEntryCount();
+            pageIds = new PageId[entryCnt];
+            for (int i = 0; i < entryCnt; i++) {
+                pageIds[i] = dirPage.getPageId(i);
+                fsm.addPage(pageIds[i], dirPage.getFreeSpace(i));
+            }
+            nextId = dirPage.getNextPage();
+            BufferPool.unpinPage(dirId, false);
+        }
+
+        dirPageIds.add(dirId);
+        for (int i = 0; i < pageIds.length; i++) {
+            entries.put(pageIds[i], base + i);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the monitor the given directory page is read and written under.
+     */
+    private Object latchOf(PageId dirId) {
+        return dirLatches[(dirId.pid & 0x7fffffff) % DIR_LATCHES];
+    }
+
+    private static PageId newDirPage(DirPage dirPage) throws ChainException {
+        PageId pageId;
+
+        try {
+            pageId = BufferPool.newPage(dirPage, 1);
+        } catch (Exception e) {
+            throw new ChainException(e, "HeapDirectory.newDirPage: Failed to allocate a new page");
+        }
+
+        dirPage.initDefaults();
+        return pageId;
+    }
+}
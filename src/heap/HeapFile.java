@@ -3,8 +3,20 @@ package heap;
 import chainexception.ChainException;
 import global.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <h3>Minibase Heap Files</h3>
@@ -13,6 +25,24 @@ import java.util.HashSet;
  * records. Temporary heap files are used for external sorting and in other
  * relational operators. A sequential scan of a heap file (via the Scan class)
  * is the most basic access method.
+ *
+ * A heap file may be used from several threads at once. Each operation holds
+ * the latches (see PageLatch) of the data pages it reads or changes, the
+ * directory serializes itself, and the file statistics are kept in atomic
+ * counters, so operations on different pages run side by side. Inserts go to
+ * the page their thread's InsertLanes lane is filling, so threads inserting
+ * at once fill different pages. Only deleteFile must not run alongside
+ * anything else.
+ *
+ * A scan or read given a Snapshot from openSnapshot sees the file as it was
+ * when the snapshot was taken, however long it runs, without holding up
+ * writers: while snapshots are open, each change keeps the version of the
+ * record it replaces in the file's VersionStore until no snapshot can see
+ * it any more.
+ *
+ * With startLogging, every change is also logged to a write-ahead HeapLog,
+ * and each operation commits its log records before it returns, so it
+ * survives a crash without its pages being forced.
  */
 public class HeapFile implements GlobalConst {
 
@@ -22,80 +52,77 @@ public class HeapFile implements GlobalConst {
      * requires no DB entry.
      */
 
-    int numRecords;
+    final LongAdder numRecords = new LongAdder();
+    final AtomicInteger pageCnt = new AtomicInteger();
+    final AtomicInteger overflowCnt = new AtomicInteger();
+    final LongAdder liveBytes = new LongAdder();
+    final LongAdder deadBytes = new LongAdder();
+    private final Object headerLock = new Object();
+    private final InsertLanes lanes = new InsertLanes();
+    final VersionStore versions = new VersionStore();
+
+    /** Times getRecord tries reading without a latch before taking one. */
+    static final int OPTIMISTIC_TRIES = 2;
     boolean temporary;
     private String name;
-    private PageId fPageId;
-    private Page fPage;
-    private HFPage hfPage;
-    public ArrayList<PageId> pageIds;
-    private HashSet<PageId> pHash;
+    private PageId headerId;
+    HeapDirectory directory;
 
     public HeapFile(String name) throws ChainException {
         this.name = name;
-        this.numRecords = 0;
-        this.temporary = false;
-        this.fPage = new Page();
-        this.hfPage = new HFPage();
-        pageIds = new ArrayList<>();
-        pHash = new HashSet<>();
-
-        // Create a new page if no filename is given
-        if(name == null) {
-            this.temporary = true;
-            this.fPageId = new PageId();
-
-            try {
-                this.fPageId = Minibase.BufferManager.newPage(this.fPage, 1);
-            } catch (Exception e) {
-                throw new ChainException(null, "HeapFile.HeapFile: Failed to allocate a new page");
-            }
-
-            // Add allocated page to heap file
-            this.hfPage.setCurPage(fPageId);
-
-            // Add pageId to array
-            this.pageIds.add(this.fPageId);
-            this.pHash.add(this.fPageId);
-
-            Minibase.BufferManager.unpinPage(this.fPageId, false);
+        this.temporary = (name == null);
 
-            return;
+        // A temporary file has no entry, so it's always created from scratch
+        if (!temporary) {
+            this.headerId = Minibase.DiskManager.get_file_entry(name);
         }
 
-        this.fPageId = Minibase.DiskManager.get_file_entry(name);
-
-        // If file doesn't exist, make a new (temporary?) one
-        if (fPageId == null) {
-            this.temporary = true;
-            this.fPageId = Minibase.BufferManager.newPage(this.fPage, 1);
+        HeaderPage header = new HeaderPage();
 
-            // Use the given name since it already doesn't exist
-            Minibase.DiskManager.add_file_entry(this.name, this.fPageId);
+        // Open the existing file from its header; the directory is read lazily
+        if (this.headerId != null) {
+            BufferPool.pinPage(this.headerId, header, false);
 
-            // Add pageId to array
-            this.pageIds.add(this.fPageId);
-            this.pHash.add(this.fPageId);
+            if (header.getPageSize() != PAGE_SIZE) {
+                int pageSize = header.getPageSize();
+                BufferPool.unpinPage(this.headerId, false);
+                throw new ChainException(null, "HeapFile.HeapFile: File '" + name + "' was created with " + pageSize + "-byte pages, not " + PAGE_SIZE);
+            }
 
-            // Add allocated page to heap file
-            this.hfPage.setCurPage(this.fPageId);
+            this.numRecords.add(header.getRecCnt());
+            this.pageCnt.set(header.getPageCnt());
+            this.overflowCnt.set(header.getOverflowCnt());
+            this.liveBytes.add(header.getLiveBytes());
+            this.deadBytes.add(header.getDeadBytes());
+            this.directory = HeapDirectory.open(header.getDirPage());
 
-            Minibase.BufferManager.unpinPage(this.fPageId, false);
+            BufferPool.unpinPage(this.headerId, false);
 
             return;
         }
 
-        // Pin to associate fPage
-        Minibase.BufferManager.pinPage(this.fPageId, this.fPage, false);
+        // Otherwise create the header, the directory and the first data page
+        try {
+            this.headerId = BufferPool.newPage(header, 1);
+        } catch (Exception e) {
+            throw new ChainException(e, "HeapFile.HeapFile: Failed to allocate a new page");
+        }
+
+        this.directory = HeapDirectory.create();
 
-        // Add pageId to array
-        this.pageIds.add(this.fPageId);
-        this.pHash.add(this.fPageId);
+        header.initDefaults();
+        header.setDirPage(directory.getRootId());
+        BufferPool.logPage(this.headerId, header);
+        BufferPool.unpinPage(this.headerId, true);
 
-        // Add allocated page to heap file
-        this.hfPage.setCurPage(this.fPageId);
+        HFPage hf = appendPage(new HFPage(), 0, 0);
+        BufferPool.unpinPage(hf.getCurPage(), true);
 
-        Minibase.BufferManager.unpinPage(this.fPageId, false);
+        if (!temporary) {
+            Minibase.DiskManager.add_file_entry(this.name, this.headerId);
+        }
+
+        BufferPool.commitLog();
     }
 
     /**
@@ -103,7 +130,6 @@ public class HeapFile implements GlobalConst {
      * object; deletes the heap file if it's temporary.
      */
     protected void finalize() throws Throwable {
-        // TODO delete heapFile
         if (temporary) {
             deleteFile();
         }
@@ -113,174 +139,1292 @@ public class HeapFile implements GlobalConst {
      * Deletes the heap file from the database, freeing all of its pages.
      */
     public void deleteFile() throws ChainException {
-        for (int i = 0; i < pageIds.size(); i++) {
+        if (overflowCnt.get() > 0) {
+            freeOverflowPages();
+        }
+        directory.freePages();
+        lanes.clear();
+        versions.clear();
+
+        try {
+            BufferPool.freePage(headerId);
+        } catch (Exception e) {
+            throw new ChainException(e, "HeapFile.deleteFile: Failed to free page");
+        }
+
+        numRecords.reset();
+        pageCnt.set(0);
+        overflowCnt.set(0);
+        liveBytes.reset();
+        deadBytes.reset();
+
+        if (!temporary) {
+            Minibase.DiskManager.delete_file_entry(this.name);
+        }
+
+        BufferPool.commitLog();
+    }
+
+    /**
+     * Frees the overflow pages of every large record in the file.
+     */
+    private void freeOverflowPages() throws ChainException {
+        ArrayList<PageId> pageIds = new ArrayList<>();
+        directory.readEntries(pageIds, null);
+
+        HFPage hf = new HFPage();
+        ArrayList<PageId> chains = new ArrayList<>();
+        for (PageId pageId : pageIds) {
+            BufferPool.pinPage(pageId, hf, false);
+            for (int slotno = hf.nextSlot(-1); slotno != -1; slotno = hf.nextSlot(slotno)) {
+                if (hf.isLarge(slotno)) {
+                    chains.add(hf.getOverflowPage(slotno));
+                }
+            }
+            BufferPool.unpinPage(pageId, false);
+
+            for (PageId first : chains) {
+                OverflowChain.free(first);
+            }
+            chains.clear();
+        }
+    }
+
+    /**
+     * Inserts a new record into the file and returns its RID. A record larger
+     * than a data page holds is stored in overflow pages.
+     */
+    public RID insertRecord(byte[] record) throws Exception {
+        if (record.length > HFPage.MAX_RECORD) {
+            return insertLargeRecord(OverflowChain.write(new ByteArrayInputStream(record)));
+        }
+
+        RID rid = storeRecord(hf -> hf.insertRecord(record), HFPage.spaceNeeded(record.length), 1, record.length, 0, 0);
+        BufferPool.commitLog();
+        return rid;
+    }
+
+    /**
+     * Inserts a new record holding the bytes from the buffer's position to its
+     * limit, and returns its RID. A record larger than a data page holds is
+     * copied straight from the buffer into overflow pages.
+     */
+    public RID insertRecord(ByteBuffer record) throws Exception {
+        if (record.remaining() > HFPage.MAX_RECORD) {
+            return insertLargeRecord(OverflowChain.write(record));
+        }
+
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return insertRecord(bytes);
+    }
+
+    /**
+     * Inserts a new record holding everything left in the stream, and returns
+     * its RID. A record larger than a data page holds is written to overflow
+     * pages as it's read, a page at a time.
+     */
+    public RID insertRecord(InputStream in) throws Exception {
+        byte[] head = new byte[HFPage.MAX_RECORD + 1];
+        int n = 0;
+        int read;
+
+        try {
+            while (n < head.length && (read = in.read(head, n, head.length - n)) != -1) {
+                n += read;
+            }
+        } catch (IOException e) {
+            throw new ChainException(e, "HeapFile.insertRecord: Failed to read the record");
+        }
+
+        if (n <= HFPage.MAX_RECORD) {
+            return insertRecord(Arrays.copyOf(head, n));
+        }
+
+        return insertLargeRecord(OverflowChain.write(new SequenceInputStream(new ByteArrayInputStream(head), in)));
+    }
+
+    /**
+     * Inserts the head of a large record that has been written to overflow
+     * pages, freeing them if the head can't be inserted for any reason.
+     */
+    private RID insertLargeRecord(OverflowChain chain) throws ChainException {
+        RID rid = null;
+        try {
+            rid = storeRecord(hf -> hf.insertLargeRecord(chain.length, chain.first), HFPage.spaceNeeded(HFPage.HEAD_SIZE),
+                    1, chain.length, chain.pageCnt * PAGE_SIZE, chain.pageCnt);
+        } finally {
+            if (rid == null) {
+                try {
+                    OverflowChain.free(chain.first);
+                } catch (ChainException e) {
+                    // The pages stay allocated; the failure that stopped the insert is reported
+                }
+            }
+        }
+
+        BufferPool.commitLog();
+        return rid;
+    }
+
+    /**
+     * Stores a record on a page the inserter fills in.
+     */
+    private interface RecordInserter {
+        RID insert(HFPage hf);
+    }
+
+    /**
+     * Stores one record on a page found by latchPage, or on a new page if
+     * there's none, and applies the given changes to the statistics along
+     * with the bytes the record took up on the page. A new page is filled in
+     * before it's added to the directory, so no other thread can reach it
+     * until then and it needs no latch.
+     */
+    private RID storeRecord(RecordInserter inserter, int spaceNeeded, int recDelta, int liveDelta, int extraUsed, int overflowDelta,
+            PageId... skip) throws ChainException {
+        HFPage hf = new HFPage();
+        PageId pageId = latchPage(hf, spaceNeeded, skip);
+        int freeSpace;
+        int usedSpace;
+        RID r;
+
+        // The page is only read while it's pinned, since its frame may hold
+        // another page once it's unpinned
+        if (pageId != null) {
             try {
-                Minibase.BufferManager.freePage(pageIds.get(i));
-            } catch (Exception e) {
-                throw new ChainException(null, "HeapFile.deleteFile: Failed to free page");
+                // A moved record isn't new, so only an insert is stamped
+                long stamp = recDelta == 1 ? versions.stamp() : -1;
+                freeSpace = hf.getFreeSpace();
+                r = inserter.insert(hf);
+                if (r != null) {
+                    logSlot(hf, r.slotno);
+                    directory.updatePage(pageId, hf.getFreeSpace(), 1);
+                    if (stamp != -1) {
+                        versions.keep(r, null, stamp);
+                    }
+                }
+                usedSpace = freeSpace - hf.getFreeSpace();
+                BufferPool.unpinPage(pageId, r != null);
+            } finally {
+                PageLatch.releaseExclusive(pageId);
+            }
+
+            if (r == null) {
+                throw new SpaceNotAvailableException(null, "HeapFile.storeRecord: Page " + pageId.pid + " has less free space than recorded");
+            }
+
+            updateHeader(recDelta, liveDelta, extraUsed + usedSpace, 0, overflowDelta);
+            return r;
+        }
+
+        hf = new HFPage();
+        freeSpace = hf.getFreeSpace();
+        r = inserter.insert(hf);
+        usedSpace = freeSpace - hf.getFreeSpace();
+        hf = publishPage(hf, 1);
+        pageId = hf.getCurPage();
+        BufferPool.unpinPage(pageId, true);
+        if (skip.length == 0) {
+            lanes.claim(pageId);
+        }
+
+        updateHeader(recDelta, liveDelta, extraUsed + usedSpace, 1, overflowDelta);
+        return new RID(new PageId(pageId.pid), r.slotno);
+    }
+
+    /**
+     * Finds a page with room for spaceNeeded bytes, other than the pages in
+     * skip, takes its exclusive latch and pins it into hf. With nothing to
+     * skip, the caller holds no latches, and this tries the page the thread's
+     * insert lane is filling first, waiting for its latch if need be.
+     * Otherwise it looks in the directory, passing over pages other lanes are
+     * filling and pages whose latches other threads hold, and the page found
+     * becomes the lane's. Returns null if there's none, leaving hf pointing at
+     * no page the caller may use; the caller then makes the new page it fills
+     * the lane's page.
+     */
+    private PageId latchPage(HFPage hf, int spaceNeeded, PageId... skip) throws ChainException {
+        if (skip.length == 0) {
+            PageId pageId = lanes.target();
+            if (pageId != null) {
+                PageLatch.exclusive(pageId);
+                BufferPool.pinPage(pageId, hf, false);
+                if (hf.getFreeSpace() >= spaceNeeded) {
+                    return pageId;
+                }
+
+                BufferPool.unpinPage(pageId, false);
+                PageLatch.releaseExclusive(pageId);
+                lanes.release(pageId);
             }
         }
 
-        numRecords = 0;
-        pageIds.clear();
-        pHash.clear();
-        hfPage = null;
+        PageId pageId = directory.findPage(spaceNeeded, candidate -> {
+            for (PageId other : skip) {
+                if (other.pid == candidate.pid) {
+                    return false;
+                }
+            }
+            return !lanes.isClaimed(candidate) && PageLatch.tryExclusive(candidate);
+        });
+
+        if (pageId != null) {
+            BufferPool.pinPage(pageId, hf, false);
+            if (skip.length == 0) {
+                lanes.claim(pageId);
+            }
+        }
 
-        Minibase.DiskManager.delete_file_entry(this.name);
+        return pageId;
     }
 
     /**
-     * Inserts a new record into the file and returns its RID.
+     * Inserts a batch of new records into the file and returns their RIDs, in
+     * the same order. Each page is pinned once for as many of the records as
+     * it can hold.
      *
-     * @throws IllegalArgumentException if the record is too large
+     * @throws ChainException if any record is larger than a data page holds
      */
-    public RID insertRecord(byte[] record) throws Exception {
-        if(record.length > MAX_TUPSIZE) {
-            throw new ChainException(null, "HeapFile.insertRecord: Argument 'record' is larger than MAX_TUPSIZE");
+    public RID[] insertRecords(List<byte[]> records) throws Exception {
+        int[] lengths = new int[records.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = records.get(i).length;
         }
 
-        // Check each page
-        for (int pid = 0; pid < pageIds.size(); pid++) {
-            Page page = new Page();
-            Minibase.BufferManager.pinPage(pageIds.get(pid), page, false);
+        return insertRecords(lengths, (hf, i) -> hf.insertRecord(records.get(i)));
+    }
 
-            HFPage hf = new HFPage(page);
+    /**
+     * Inserts a batch of new records, stored back to back in the buffer from
+     * its position on, and returns their RIDs in the same order. The records
+     * are copied straight from the buffer into the pages.
+     *
+     * @throws ChainException if any record is larger than a data page holds
+     */
+    public RID[] insertRecords(ByteBuffer records, int[] lengths) throws Exception {
+        long total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        if (total > records.remaining()) {
+            throw new ChainException(null, "HeapFile.insertRecords: Argument 'records' holds fewer bytes than 'lengths' requires");
+        }
 
-            if (hf.getFreeSpace() > record.length) {
-                RID r = this.hfPage.insertRecord(record);
-                this.numRecords++;
-                Minibase.BufferManager.unpinPage(pageIds.get(pid), true);
-                return r;
-            }
+        return insertRecords(lengths, (hf, i) -> hf.insertRecord(records, lengths[i]));
+    }
+
+    /**
+     * Inserts a record of a batch into the given page, returning its RID or
+     * null if the page is too full.
+     */
+    private interface BatchInserter {
+        RID insert(HFPage hf, int i);
+    }
 
-            Minibase.BufferManager.unpinPage(pageIds.get(pid), false);
+    private RID[] insertRecords(int[] lengths, BatchInserter inserter) throws Exception {
+        for (int length : lengths) {
+            if (length > HFPage.MAX_RECORD) {
+                throw new ChainException(null, "HeapFile.insertRecords: A record is larger than a data page holds");
+            }
         }
 
-        Page page = new Page();
-        PageId pageId = Minibase.BufferManager.newPage(page, 1);
-        HFPage hf = new HFPage(page);
-        hf.initDefaults();
-        hf.setCurPage(pageId);
+        RID[] rids = new RID[lengths.length];
+        int i = 0;
 
-        pageIds.add(pageId);
-        pHash.add(pageId);
+        while (i < lengths.length) {
+            HFPage hf = new HFPage();
+            PageId pageId = latchPage(hf, HFPage.spaceNeeded(lengths[i]));
+            boolean latched = pageId != null;
+            if (!latched) {
+                hf = new HFPage();
+            }
 
-        // Add links between the current and new page
-        hf.setPrevPage(this.hfPage.getCurPage());
-        this.hfPage.setNextPage(pageId);
-        this.hfPage = hf;
+            // Pack as many of the remaining records onto this page as fit
+            int freeSpace = hf.getFreeSpace();
+            int usedSpace;
+            int first = i;
+            int recBytes = 0;
+            RID r;
 
-        // Add record to new page
-        RID r = this.hfPage.insertRecord(record);
+            try {
+                long stamp = latched ? versions.stamp() : -1;
+                while (i < lengths.length && (r = inserter.insert(hf, i)) != null) {
+                    rids[i] = r;
+                    recBytes += lengths[i];
+                    if (latched) {
+                        logSlot(hf, r.slotno);
+                    }
+                    if (stamp != -1) {
+                        versions.keep(r, null, stamp);
+                    }
+                    i++;
+                }
+                usedSpace = freeSpace - hf.getFreeSpace();
 
-        Minibase.BufferManager.unpinPage(pageId, true);
+                if (latched && i > first) {
+                    directory.updatePage(pageId, hf.getFreeSpace(), i - first);
+                }
+                if (latched) {
+                    BufferPool.unpinPage(pageId, i > first);
+                }
+            } finally {
+                if (latched) {
+                    PageLatch.releaseExclusive(pageId);
+                }
+            }
 
-        this.numRecords++;
+            if (i == first) {
+                throw new SpaceNotAvailableException(null, "HeapFile.insertRecords: Page " + pageId.pid + " has less free space than recorded");
+            }
+
+            // A new page only gets its id once it's full
+            if (!latched) {
+                hf = publishPage(hf, i - first);
+                pageId = hf.getCurPage();
+                BufferPool.unpinPage(pageId, true);
+                lanes.claim(pageId);
+                for (int j = first; j < i; j++) {
+                    rids[j] = new RID(new PageId(pageId.pid), rids[j].slotno);
+                }
+            }
 
-        return r;
+            updateHeader(i - first, recBytes, usedSpace, latched ? 0 : 1);
+        }
+
+        BufferPool.commitLog();
+        return rids;
     }
 
     /**
-     * Reads a record from the file, given its id.
+     * Reads a record from the file, given its id. A record stored on a data
+     * page is first read without taking its page's latch (see readOptimistic).
      *
-     * @throws IllegalArgumentException if the rid is invalid
+     * @throws ChainException if the rid is invalid
      */
     public Tuple getRecord(RID rid) throws Exception {
-        if (!pHash.contains(rid.pageno)) {
+        if (!directory.contains(rid.pageno)) {
             throw new ChainException(null, "HeapFile.getRecord: Invalid RID");
         }
 
-        Page page = new Page();
-        HFPage hf = new HFPage();
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            byte[] record = readOptimistic(rid);
+            if (record != null) {
+                return new Tuple(record, 0, record.length);
+            }
+        }
+
+        RID target = new RID();
+        HFPage hf = pinRecord(rid, target, "HeapFile.getRecord");
         byte[] record;
-        short offset;
-        short length;
 
         try {
-            Minibase.BufferManager.pinPage(rid.pageno, page, false);
+            record = readRecord(hf, target.slotno);
+        } finally {
+            unpinRecord(target);
+        }
+
+        return new Tuple(record, 0, record.length);
+    }
+
+    /**
+     * Reads a record as it was when the given snapshot was taken, whatever
+     * has happened to it since.
+     *
+     * @throws ChainException if the snapshot is closed or not of this file,
+     * or the rid didn't name a record when the snapshot was taken
+     */
+    public Tuple getRecord(RID rid, Snapshot snapshot) throws ChainException {
+        checkSnapshot(snapshot, "HeapFile.getRecord");
+        if (!directory.contains(rid.pageno)) {
+            throw new ChainException(null, "HeapFile.getRecord: Invalid RID");
+        }
 
-            hf.copyPage(page);
+        byte[] record = readVisible(rid, snapshot);
+        if (record == null) {
+            throw new ChainException(null, "HeapFile.getRecord: Invalid RID");
+        }
 
-            record = hf.selectRecord(rid);
-            offset = hf.getSlotOffset(rid.slotno);
-            length = hf.checkRID(rid);
+        return new Tuple(record, 0, record.length);
+    }
 
-            Minibase.BufferManager.unpinPage(rid.pageno, false);
-        } catch(Exception e) {
-            throw new ChainException(null, "HeapFile.getRecord: Failed to retrieve record from HFPage");
+    /**
+     * Copies out the version of a record the given snapshot sees, or returns
+     * null if the record didn't exist when it was taken. The record's kept
+     * versions are looked at under the latch of the page its RID names, and
+     * if it has moved, again under the latch of the page it has moved to,
+     * as the chain may have grown in between.
+     */
+    byte[] readVisible(RID rid, Snapshot snapshot) throws ChainException {
+        HFPage hf = new HFPage();
+        RID target = new RID();
+
+        while (true) {
+            PageLatch.shared(rid.pageno);
+            BufferPool.pinPage(rid.pageno, hf, false);
+            try {
+                VersionStore.Version version = versions.changedSince(rid, snapshot);
+                if (version != null) {
+                    return VersionStore.visible(version, snapshot);
+                }
+
+                try {
+                    hf.checkRID(rid);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+
+                if (!hf.isForwarded(rid.slotno)) {
+                    return readRecord(hf, rid.slotno);
+                }
+                hf.getLinkedRID(rid.slotno, target);
+            } finally {
+                unpinRecord(rid);
+            }
+
+            PageLatch.shared(target.pageno);
+            BufferPool.pinPage(target.pageno, hf, false);
+            try {
+                if (hf.isMovedFrom(target.slotno, rid)) {
+                    VersionStore.Version version = versions.changedSince(rid, snapshot);
+                    return version != null ? VersionStore.visible(version, snapshot) : readRecord(hf, target.slotno);
+                }
+            } finally {
+                unpinRecord(target);
+            }
+        }
+    }
+
+    /**
+     * Copies out the record in the given slot of a page the caller has
+     * latched, reading it from its overflow pages if it's large.
+     */
+    static byte[] readRecord(HFPage hf, int slotno) throws ChainException {
+        if (hf.isLarge(slotno)) {
+            return OverflowChain.read(hf.getOverflowPage(slotno), hf.getLargeLength(slotno));
         }
 
-        return new Tuple(record, offset, length);
+        int offset = hf.getSlotOffset(slotno);
+        return Arrays.copyOfRange(hf.getData(), offset, offset + hf.getSlotLength(slotno));
     }
 
     /**
-     * Updates the specified record in the heap file.
+     * Checks that the given snapshot is open and was taken of this file.
+     */
+    private void checkSnapshot(Snapshot snapshot, String caller) throws ChainException {
+        if (!versions.isOpen(snapshot)) {
+            throw new ChainException(null, caller + ": Snapshot is closed or of another file");
+        }
+    }
+
+    /**
+     * Copies a record into the buffer from its position on, a page at a time
+     * if it's stored in overflow pages, and returns its length.
+     *
+     * @throws ChainException if the rid is invalid or the buffer has less
+     * room than the record
+     */
+    public int getRecord(RID rid, ByteBuffer dst) throws ChainException {
+        RID target = new RID();
+        HFPage hf = pinRecord(rid, target, "HeapFile.getRecord");
+
+        try {
+            int length = recordLength(hf, target.slotno);
+            if (length > dst.remaining()) {
+                throw new ChainException(null, "HeapFile.getRecord: Argument 'dst' has less room than the record");
+            }
+
+            if (hf.isLarge(target.slotno)) {
+                OverflowChain.read(hf.getOverflowPage(target.slotno), dst);
+            } else {
+                dst.put(hf.getData(), hf.getSlotOffset(target.slotno), length);
+            }
+
+            return length;
+        } finally {
+            unpinRecord(target);
+        }
+    }
+
+    /**
+     * Opens a stream over a record's bytes. A record stored in overflow pages
+     * is read from them a page at a time as the stream is read, holding no
+     * pins between reads; the stream is only valid until the record is
+     * updated or deleted.
      *
-     * @throws IllegalArgumentException if the rid or new record is invalid
+     * @throws ChainException if the rid is invalid
+     */
+    public InputStream getRecordStream(RID rid) throws ChainException {
+        RID target = new RID();
+        HFPage hf = pinRecord(rid, target, "HeapFile.getRecordStream");
+
+        try {
+            if (hf.isLarge(target.slotno)) {
+                return new OverflowChain.Reader(hf.getOverflowPage(target.slotno), hf.getLargeLength(target.slotno));
+            }
+
+            return new ByteArrayInputStream(hf.selectRecord(target));
+        } finally {
+            unpinRecord(target);
+        }
+    }
+
+    /**
+     * Gets the length of a record, in bytes.
+     *
+     * @throws ChainException if the rid is invalid
+     */
+    public int getRecordLength(RID rid) throws ChainException {
+        RID target = new RID();
+        HFPage hf = pinRecord(rid, target, "HeapFile.getRecordLength");
+        int length = recordLength(hf, target.slotno);
+        unpinRecord(target);
+
+        return length;
+    }
+
+    /**
+     * Copies a record stored on a data page, and the stub that points to it
+     * if it has moved, out of its pinned pages without their latches, keeping
+     * each copy only if no writer has latched the page since it was started.
+     * Returns null if a writer got in the way, and also for a large record or
+     * an invalid rid, which are left to the latched path.
+     */
+    private byte[] readOptimistic(RID rid) throws ChainException {
+        HFPage hf = new HFPage();
+        RID target = null;
+        PageId pageId = rid.pageno;
+        int slotno = rid.slotno;
+
+        while (true) {
+            long stamp = PageLatch.optimistic(pageId);
+            if (stamp == -1) {
+                return null;
+            }
+
+            // Whatever a torn read of the page turns up is thrown away below,
+            // so bounds are checked, and a read that fails is the same as one
+            // a writer broke into
+            byte[] record = null;
+            boolean valid;
+            BufferPool.pinPage(pageId, hf, false);
+            try {
+                valid = slotno >= 0 && slotno < hf.getSlotCount() && !hf.isLarge(slotno)
+                        && (target == null ? hf.getSlotLength(slotno) != -1 : hf.isMovedFrom(slotno, rid));
+                if (valid && hf.isForwarded(slotno)) {
+                    target = new RID();
+                    hf.getLinkedRID(slotno, target);
+                } else if (valid) {
+                    int offset = hf.getSlotOffset(slotno);
+                    int length = hf.getSlotLength(slotno);
+                    valid = offset >= 0 && length >= 0 && offset + length <= PAGE_SIZE;
+                    if (valid) {
+                        record = Arrays.copyOfRange(hf.getData(), offset, offset + length);
+                    }
+                }
+            } catch (RuntimeException e) {
+                valid = false;
+            } finally {
+                BufferPool.unpinPage(pageId, false);
+            }
+
+            if (!PageLatch.validate(pageId, stamp) || !valid) {
+                return null;
+            }
+            if (record != null) {
+                return record;
+            }
+
+            // Follow the stub; the record there is only taken if it still
+            // belongs to it
+            pageId = target.pageno;
+            slotno = target.slotno;
+        }
+    }
+
+    /**
+     * Pins the page that holds the given record and takes its shared latch,
+     * following its stub if it has moved, and copies the record's RID on that
+     * page into target; the caller calls unpinRecord(target). A stub's page
+     * is let go before the page it points to is latched, so once there, the
+     * record is checked to still be the one moved from the stub, and the stub
+     * is read again if it isn't.
+     *
+     * @throws ChainException if the rid is invalid
+     */
+    private HFPage pinRecord(RID rid, RID target, String caller) throws ChainException {
+        if (!directory.contains(rid.pageno)) {
+            throw new ChainException(null, caller + ": Invalid RID");
+        }
+
+        HFPage hf = new HFPage();
+
+        while (true) {
+            target.pageno.pid = rid.pageno.pid;
+            target.slotno = rid.slotno;
+
+            PageLatch.shared(rid.pageno);
+            BufferPool.pinPage(rid.pageno, hf, false);
+            try {
+                hf.checkRID(rid);
+            } catch (IllegalArgumentException e) {
+                unpinRecord(target);
+                throw new ChainException(e, caller + ": Invalid RID");
+            }
+
+            if (!hf.isForwarded(rid.slotno)) {
+                return hf;
+            }
+
+            hf.getLinkedRID(rid.slotno, target);
+            unpinRecord(rid);
+
+            PageLatch.shared(target.pageno);
+            BufferPool.pinPage(target.pageno, hf, false);
+            if (hf.isMovedFrom(target.slotno, rid)) {
+                return hf;
+            }
+            unpinRecord(target);
+        }
+    }
+
+    /**
+     * Unpins the page pinned by pinRecord and releases its latch.
+     */
+    private static void unpinRecord(RID target) throws ChainException {
+        try {
+            BufferPool.unpinPage(target.pageno, false);
+        } finally {
+            PageLatch.releaseShared(target.pageno);
+        }
+    }
+
+    /**
+     * Gets the length of the record in the given slot, which may be the head
+     * of a large record.
+     */
+    private static int recordLength(HFPage hf, int slotno) {
+        return hf.isLarge(slotno) ? hf.getLargeLength(slotno) : hf.getSlotLength(slotno);
+    }
+
+    /**
+     * Reads a record from the file into the given view, without copying it.
+     * The record's page stays pinned until the view is released or reused.
+     *
+     * @throws ChainException if the rid is invalid
+     */
+    public void getRecord(RID rid, TupleView view) throws ChainException {
+        view.release();
+
+        if (!directory.contains(rid.pageno)) {
+            throw new ChainException(null, "HeapFile.getRecord: Invalid RID");
+        }
+
+        try {
+            view.pinAndBind(rid);
+        } catch (Exception e) {
+            view.release();
+            throw new ChainException(e, "HeapFile.getRecord: Failed to retrieve record from HFPage");
+        }
+    }
+
+    /**
+     * Updates the specified record in the heap file. The new record may be a
+     * different size from the old one. A record that no longer fits on its
+     * page is moved to another page, leaving a forwarding stub behind, and a
+     * moved record that fits on its original page again is moved back; either
+     * way its RID stays the same. A new record larger than a data page holds,
+     * or one that doesn't fit on its page and is too close to that size to
+     * fit on another one along with the RID of its stub, is stored in overflow
+     * pages like a large inserted record.
+     *
+     * @return false if the rid is invalid
      */
     public boolean updateRecord(RID rid, Tuple newRecord) throws Exception {
-        if (!pHash.contains(rid.pageno)) {
+        if (!directory.contains(rid.pageno)) {
             throw new ChainException(null, "HeapFile.updateRecord: Invalid RID");
         }
 
-        Page page = new Page();
+        // A large record is written to its overflow pages before its slot is
+        // touched
+        OverflowChain chain = null;
+        if (newRecord.getLength() > HFPage.MAX_RECORD) {
+            chain = OverflowChain.write(new ByteArrayInputStream(newRecord.data, 0, newRecord.getLength()));
+        }
+
         HFPage hf = new HFPage();
+        RID target = new RID();
+        PageId overflow = null;
+        int overflowPages = 0;
+
+        while (!latchRecord(rid, hf, target)) {
+            Thread.yield();
+        }
 
         try {
-            Minibase.BufferManager.pinPage(rid.pageno, page, false);
+            try {
+                hf.checkRID(rid);
+            } catch (Exception e) {
+                BufferPool.unpinPage(rid.pageno, false);
+                if (chain != null) {
+                    OverflowChain.free(chain.first);
+                }
+                return false;
+            }
 
-            hf.copyPage(page);
-            hf.updateRecord(rid, newRecord);
+            // The old record's overflow pages are freed once it has been
+            // replaced and the latch is released
+            if (hf.isLarge(rid.slotno)) {
+                overflow = hf.getOverflowPage(rid.slotno);
+                overflowPages = OverflowChain.pagesFor(hf.getLargeLength(rid.slotno));
+            }
 
-            Minibase.BufferManager.unpinPage(rid.pageno, true);
-        } catch (Exception e) {
+            try {
+                keepVersion(hf, rid, target);
+
+                boolean updated = chain != null;
+                if (!updated && hf.isForwarded(rid.slotno)) {
+                    updated = updateMovedRecord(hf, rid, target, newRecord);
+                } else if (!updated) {
+                    updated = updateHomeRecord(hf, rid, newRecord);
+                }
+
+                // A record too close to HFPage.MAX_RECORD to be moved along
+                // with the RID of its stub goes to overflow pages instead
+                if (!updated) {
+                    chain = OverflowChain.write(new ByteArrayInputStream(newRecord.data, 0, newRecord.getLength()));
+                }
+                if (chain != null) {
+                    updateLargeRecord(hf, rid, target, chain);
+                }
+            } finally {
+                BufferPool.unpinPage(rid.pageno, true);
+            }
+        } finally {
+            releaseRecord(rid, target);
+        }
+
+        if (overflow != null) {
+            OverflowChain.free(overflow);
+            updateHeader(0, 0, -overflowPages * PAGE_SIZE, 0, -overflowPages);
+        }
+
+        BufferPool.commitLog();
+        return true;
+    }
+
+    /**
+     * Takes the exclusive latch of the given record's page and pins it into
+     * hf, and if the record is a stub, the latch of the page it points to as
+     * well, copying its RID there into target. The second latch is only tried,
+     * since this thread already holds one; if another thread holds it, both
+     * are let go and this returns false, so the caller can start over. For a
+     * record that isn't a stub, target.pageno is left invalid. The caller
+     * unpins rid.pageno and calls releaseRecord.
+     */
+    private boolean latchRecord(RID rid, HFPage hf, RID target) throws ChainException {
+        target.pageno.pid = -1;
+
+        PageLatch.exclusive(rid.pageno);
+        BufferPool.pinPage(rid.pageno, hf, false);
+
+        int slotCnt = hf.getSlotCount();
+        if (rid.slotno < 0 || rid.slotno >= slotCnt || !hf.isForwarded(rid.slotno)) {
+            return true;
+        }
+
+        hf.getLinkedRID(rid.slotno, target);
+        if (PageLatch.tryExclusive(target.pageno)) {
+            return true;
+        }
+
+        target.pageno.pid = -1;
+        BufferPool.unpinPage(rid.pageno, false);
+        PageLatch.releaseExclusive(rid.pageno);
+        return false;
+    }
+
+    /**
+     * Keeps the current version of a record latched by latchRecord for the
+     * open snapshots, if there are any, before it's updated or deleted.
+     */
+    private void keepVersion(HFPage hf, RID rid, RID target) throws ChainException {
+        long stamp = versions.stamp();
+        if (stamp == -1) {
+            return;
+        }
+
+        if (!hf.isForwarded(rid.slotno)) {
+            versions.keep(rid, readRecord(hf, rid.slotno), stamp);
+            return;
+        }
+
+        HFPage moved = new HFPage();
+        BufferPool.pinPage(target.pageno, moved, false);
+        try {
+            versions.keep(rid, readRecord(moved, target.slotno), stamp);
+        } finally {
+            BufferPool.unpinPage(target.pageno, false);
+        }
+    }
+
+    /**
+     * Releases the latches taken by latchRecord.
+     */
+    private static void releaseRecord(RID rid, RID target) {
+        if (target.pageno.pid != -1) {
+            PageLatch.releaseExclusive(target.pageno);
+        }
+        PageLatch.releaseExclusive(rid.pageno);
+    }
+
+    /**
+     * Replaces the record in its slot on the pinned page hf with the head of
+     * a large record, deleting the record's moved copy, at target on a page
+     * the caller has latched, if it has one.
+     */
+    private void updateLargeRecord(HFPage hf, RID rid, RID target, OverflowChain chain) throws ChainException {
+        int freeSpace = hf.getFreeSpace();
+        int usedDelta = chain.pageCnt * PAGE_SIZE;
+        int oldLength;
+        int recDelta = 0;
+
+        if (hf.isForwarded(rid.slotno)) {
+            HFPage moved = new HFPage();
+
+            BufferPool.pinPage(target.pageno, moved, false);
+            oldLength = moved.getSlotLength(target.slotno);
+            int movedFreeSpace = moved.getFreeSpace();
+            moved.deleteRecord(target);
+            logSlot(moved, target.slotno);
+            directory.updatePage(target.pageno, moved.getFreeSpace(), -1);
+            usedDelta += movedFreeSpace - moved.getFreeSpace();
+            BufferPool.unpinPage(target.pageno, true);
+
+            recDelta = 1;
+        } else {
+            oldLength = recordLength(hf, rid.slotno);
+        }
+
+        hf.setLarge(rid.slotno, chain.length, chain.first);
+        logSlot(hf, rid.slotno);
+        directory.updatePage(rid.pageno, hf.getFreeSpace(), recDelta);
+        updateHeader(0, chain.length - oldLength, usedDelta + freeSpace - hf.getFreeSpace(), 0, chain.pageCnt);
+    }
+
+    /**
+     * Updates a record stored in its original slot, moving it out to another
+     * page if the new record doesn't fit on the pinned page hf.
+     */
+    private boolean updateHomeRecord(HFPage hf, RID rid, Tuple newRecord) throws ChainException {
+        int oldLength = recordLength(hf, rid.slotno);
+        int freeSpace = hf.getFreeSpace();
+
+        if (hf.updateRecord(rid, newRecord)) {
+            logSlot(hf, rid.slotno);
+            directory.updatePage(rid.pageno, hf.getFreeSpace(), 0);
+            updateHeader(0, newRecord.getLength() - oldLength, freeSpace - hf.getFreeSpace(), 0);
+            return true;
+        }
+
+        RID target = insertMovedRecord(newRecord, rid, rid.pageno);
+        if (target == null) {
             return false;
         }
 
+        hf.setForward(rid.slotno, target);
+        logSlot(hf, rid.slotno);
+        directory.updatePage(rid.pageno, hf.getFreeSpace(), -1);
+        updateHeader(0, newRecord.getLength() - oldLength, freeSpace - hf.getFreeSpace(), 0);
+        return true;
+    }
+
+    /**
+     * Updates a record that has been moved away from the stub on the pinned
+     * page hf to target, on a page the caller has latched: back into the
+     * stub's slot if it fits there now, in place if it fits where it is, and
+     * otherwise to yet another page.
+     */
+    private boolean updateMovedRecord(HFPage hf, RID rid, RID target, Tuple newRecord) throws ChainException {
+        HFPage moved = new HFPage();
+        int freeSpace = hf.getFreeSpace();
+
+        BufferPool.pinPage(target.pageno, moved, false);
+        try {
+            int oldLength = moved.getSlotLength(target.slotno);
+            int movedFreeSpace = moved.getFreeSpace();
+            int homeDelta = 0;
+
+            if (hf.updateRecord(rid, newRecord)) {
+                moved.deleteRecord(target);
+                homeDelta = 1;
+            } else if (!moved.updateRecord(target, newRecord)) {
+                RID newTarget = insertMovedRecord(newRecord, rid, target.pageno);
+                if (newTarget == null) {
+                    return false;
+                }
+
+                moved.deleteRecord(target);
+                hf.setForward(rid.slotno, newTarget);
+            }
+            logSlot(hf, rid.slotno);
+            logSlot(moved, target.slotno);
+
+            if (homeDelta != 0) {
+                directory.updatePage(rid.pageno, hf.getFreeSpace(), homeDelta);
+            }
+            directory.updatePage(target.pageno, moved.getFreeSpace(), moved.getSlotLength(target.slotno) == -1 ? -1 : 0);
+
+            int usedDelta = freeSpace - hf.getFreeSpace() + movedFreeSpace - moved.getFreeSpace();
+            updateHeader(0, newRecord.getLength() - oldLength, usedDelta, 0);
+        } finally {
+            BufferPool.unpinPage(target.pageno, true);
+        }
+
         return true;
     }
 
+    /**
+     * Stores a record that is moving out of the given slot on a page other
+     * than the slot's own or the given page, which the caller has pinned, and
+     * returns its new RID, or null if the record is too large to be moved.
+     */
+    private RID insertMovedRecord(Tuple record, RID home, PageId avoid) throws ChainException {
+        int length = record.getLength() + HFPage.RID_SIZE;
+        if (length > HFPage.MAX_RECORD) {
+            return null;
+        }
+
+        return storeRecord(hf -> hf.insertMovedRecord(record.data, record.getLength(), home), HFPage.spaceNeeded(length),
+                0, 0, 0, 0, home.pageno, avoid);
+    }
+
     /**
      * Deletes the specified record from the heap file.
      *
      * @throws IllegalArgumentException if the rid is invalid
      */
     public boolean deleteRecord(RID rid) throws Exception {
-        if (!pHash.contains(rid.pageno)) {
+        if (!directory.contains(rid.pageno)) {
             throw new ChainException(null, "HeapFile.deleteRecord: Invalid RID");
         }
 
-        Page page = new Page();
         HFPage hf = new HFPage();
+        RID target = new RID();
+        int length;
+        int freeSpace;
+        int recDelta = -1;
+        int usedDelta = 0;
+        PageId overflow = null;
+        int overflowPages = 0;
+
+        while (!latchRecord(rid, hf, target)) {
+            Thread.yield();
+        }
 
         try {
-            Minibase.BufferManager.pinPage(rid.pageno, page, false);
+            try {
+                length = hf.checkRID(rid);
+                freeSpace = hf.getFreeSpace();
+            } catch (Exception e) {
+                BufferPool.unpinPage(rid.pageno, false);
+                return false;
+            }
+
+            keepVersion(hf, rid, target);
+
+            // Free a large record's overflow pages along with its head
+            if (hf.isLarge(rid.slotno)) {
+                length = hf.getLargeLength(rid.slotno);
+                overflow = hf.getOverflowPage(rid.slotno);
+                overflowPages = OverflowChain.pagesFor(length);
+                usedDelta = -overflowPages * PAGE_SIZE;
+            }
+
+            // Delete the moved record along with its stub
+            if (hf.isForwarded(rid.slotno)) {
+                HFPage moved = new HFPage();
+
+                BufferPool.pinPage(target.pageno, moved, false);
+                length = moved.getSlotLength(target.slotno);
+                int movedFreeSpace = moved.getFreeSpace();
+                moved.deleteRecord(target);
+                logSlot(moved, target.slotno);
+                directory.updatePage(target.pageno, moved.getFreeSpace(), -1);
+                BufferPool.unpinPage(target.pageno, true);
+
+                recDelta = 0;
+                usedDelta = movedFreeSpace - moved.getFreeSpace();
+            }
 
-            hf.copyPage(page);
             hf.deleteRecord(rid);
+            logSlot(hf, rid.slotno);
+            directory.updatePage(rid.pageno, hf.getFreeSpace(), recDelta);
+            usedDelta += freeSpace - hf.getFreeSpace();
+            BufferPool.unpinPage(rid.pageno, true);
+        } finally {
+            releaseRecord(rid, target);
+        }
 
-            Minibase.BufferManager.unpinPage(rid.pageno, true);
-            numRecords--;
-            return true;
-        } catch (Exception e) {
-            return false;
+        if (overflow != null) {
+            OverflowChain.free(overflow);
         }
+
+        updateHeader(-1, -length, usedDelta, 0, -overflowPages);
+        BufferPool.commitLog();
+        return true;
     }
 
     /**
      * Gets the number of records in the file.
      */
     public int getRecCnt() {
-        return this.numRecords;
+        return this.numRecords.intValue();
+    }
+
+    /**
+     * Gets the number of data pages in the file.
+     */
+    public int getPageCnt() {
+        return this.pageCnt.get();
+    }
+
+    /**
+     * Gets the total length of the records in the file, in bytes.
+     */
+    public long getLiveBytes() {
+        return this.liveBytes.sum();
+    }
+
+    /**
+     * Gets the bytes on the file's data and overflow pages that hold neither
+     * free space nor live records, such as slots left behind by deleted
+     * records.
+     */
+    public long getDeadBytes() {
+        return this.deadBytes.sum();
+    }
+
+    /**
+     * Gets the average length of the records in the file, in bytes.
+     */
+    public double getAvgRecLength() {
+        long recCnt = this.numRecords.sum();
+        return recCnt == 0 ? 0 : (double)this.liveBytes.sum() / recCnt;
+    }
+
+    /**
+     * Loads the given records into new pages packed as full as they'll go.
+     * Returns the number of records loaded.
+     */
+    public int bulkLoad(Iterator<byte[]> records) throws ChainException {
+        return bulkLoad(records, BulkWriter.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Loads the given records into new pages, filling each one only up to the
+     * given fraction of its space. Returns the number of records loaded.
+     */
+    public int bulkLoad(Iterator<byte[]> records, double fillFactor) throws ChainException {
+        BulkWriter writer = openBulkWriter(fillFactor);
+        int count = 0;
+
+        try {
+            while (records.hasNext()) {
+                writer.insertRecord(records.next());
+                count++;
+            }
+        } finally {
+            writer.close();
+        }
+
+        return count;
+    }
+
+    /**
+     * Opens a writer that appends records to new pages of the file, filling
+     * each one only up to the given fraction of its space.
+     */
+    public BulkWriter openBulkWriter(double fillFactor) {
+        return new BulkWriter(this, fillFactor);
+    }
+
+    /**
+     * Has bulk-read scans of every heap file copy their pages out of a memory
+     * mapping of the given database file, the one Minibase was started on,
+     * rather than reading each page through the disk manager.
+     *
+     * @throws ChainException if the file can't be opened
+     */
+    public static void mapDatabase(String path) throws ChainException {
+        BufferPool.mapDatabase(path);
+    }
+
+    /**
+     * Has bulk-read scans go back to reading through the disk manager.
+     */
+    public static void unmapDatabase() throws ChainException {
+        BufferPool.unmapDatabase();
+    }
+
+    /**
+     * Starts writing the pages heap files dirty back to disk on a background
+     * thread, in page id order, whenever the given number of them have built
+     * up or shortly after the first one, so evictions rarely have to write a
+     * page before reusing its frame.
+     *
+     * @throws IllegalArgumentException if maxDirtyPages is less than 1
+     */
+    public static void startWriteback(int maxDirtyPages) throws ChainException {
+        BufferPool.startWriteback(maxDirtyPages);
+    }
+
+    /**
+     * Flushes the pages still waiting for the background writer and stops it.
+     */
+    public static void stopWriteback() throws ChainException {
+        BufferPool.stopWriteback();
+    }
+
+    /**
+     * Starts logging every change heap files make to their pages to a
+     * write-ahead log at the given path, first redoing whatever a crash left
+     * in it. Each insert, update and delete then returns once its log
+     * records are durable, rather than once its pages are, and the log's
+     * flusher forces the records of every operation waiting at the time in
+     * one sequential write. No heap file may be in use while this runs.
+     *
+     * @throws ChainException if the log can't be read or written
+     */
+    public static void startLogging(String path) throws ChainException {
+        BufferPool.startLogging(path);
+    }
+
+    /**
+     * Flushes every dirty page, empties the log and stops logging. No heap
+     * file may be in use while this runs.
+     */
+    public static void stopLogging() throws ChainException {
+        BufferPool.stopLogging();
     }
 
     /**
      * Initiates a sequential scan of the heap file.
      */
-    public HeapScan openScan() {
+    public HeapScan openScan() throws ChainException {
         return new HeapScan(this);
     }
 
+    /**
+     * Initiates a sequential scan of the heap file that checks the spec's
+     * predicates and projection directly against the pages, so records that
+     * don't match are never copied.
+     */
+    public HeapScan openScan(ScanSpec spec) throws ChainException {
+        return new HeapScan(this, spec);
+    }
+
+    /**
+     * Initiates a sequential scan of the heap file as it was when the given
+     * snapshot was taken. The scan copies each page's records out, reading
+     * those changed since the snapshot from their kept versions, and returns
+     * every record the snapshot sees exactly once, under its RID.
+     *
+     * @throws ChainException if the snapshot is closed or not of this file
+     */
+    public HeapScan openScan(Snapshot snapshot) throws ChainException {
+        return openScan(null, snapshot);
+    }
+
+    /**
+     * Initiates a scan of the heap file as it was when the given snapshot was
+     * taken, returning only what the spec asks for.
+     *
+     * @throws ChainException if the snapshot is closed or not of this file
+     */
+    public HeapScan openScan(ScanSpec spec, Snapshot snapshot) throws ChainException {
+        checkSnapshot(snapshot, "HeapFile.openScan");
+        return new HeapScan(this, spec, snapshot);
+    }
+
+    /**
+     * Takes a snapshot of the heap file as it is now, for openScan and
+     * getRecord. Until it's closed, updates and deletes keep the versions of
+     * records they replace for it; closing it vacuums the versions no open
+     * snapshot needs any more.
+     */
+    public Snapshot openSnapshot() {
+        return versions.open();
+    }
+
+    /**
+     * Splits a sequential scan of the heap file into up to the given number of
+     * scans over disjoint runs of pages, which can be run by different threads
+     * at once. Pages added to the file after the split aren't scanned.
+     */
+    public HeapScan[] openParallelScan(int partitions) throws ChainException {
+        return openParallelScan(partitions, null);
+    }
+
+    /**
+     * Splits a sequential scan of the heap file, restricted by the given spec,
+     * into up to the given number of scans over disjoint runs of pages.
+     */
+    public HeapScan[] openParallelScan(int partitions, ScanSpec spec) throws ChainException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Invalid number of partitions");
+        }
+
+        ArrayList<PageId> pageIds = new ArrayList<>();
+        directory.readEntries(pageIds, null);
+
+        int n = Math.min(partitions, pageIds.size());
+        HeapScan[] scans = new HeapScan[n];
+        for (int i = 0; i < n; i++) {
+            List<PageId> run = pageIds.subList(i * pageIds.size() / n, (i + 1) * pageIds.size() / n);
+            scans[i] = new HeapScan(this, spec, run);
+        }
+
+        return scans;
+    }
+
+    /**
+     * Returns a spliterator over the records of the heap file, which splits
+     * by pages so the file can be scanned by a parallel stream. Its sizes are
+     * exact only if the file isn't changed while it's being traversed.
+     */
+    public Spliterator<HeapRecord> spliterator() throws ChainException {
+        ArrayList<PageId> pageIds = new ArrayList<>();
+        ArrayList<Integer> recCnts = new ArrayList<>();
+        directory.readEntries(pageIds, recCnts);
+
+        long[] recCntSums = new long[recCnts.size() + 1];
+        for (int i = 0; i < recCnts.size(); i++) {
+            recCntSums[i + 1] = recCntSums[i] + recCnts.get(i);
+        }
+
+        return new HeapSpliterator(pageIds.toArray(new PageId[0]), recCntSums, 0, pageIds.size());
+    }
+
+    /**
+     * Returns a sequential stream over the records of the heap file. Nothing
+     * is read until a terminal operation runs; then the directory is read and
+     * each data page is pinned only while its records are copied out, so an
+     * operation that finishes early (findFirst, limit, anyMatch, ...) reads no
+     * further pages and leaves nothing pinned. Use parallel() to scan pages on
+     * several threads at once. Pages added to the file once the operation has
+     * started aren't read.
+     */
+    public Stream<HeapRecord> stream() {
+        return StreamSupport.stream(() -> {
+            try {
+                return spliterator();
+            } catch (ChainException e) {
+                throw new IllegalStateException("HeapFile.stream: Failed to read the directory", e);
+            }
+        }, Spliterator.ORDERED | Spliterator.NONNULL, false);
+    }
+
     /**
      * Returns the name of the heap file.
      */
@@ -288,4 +1432,103 @@ public class HeapFile implements GlobalConst {
         return this.name;
     }
 
+    /**
+     * Hands a page built outside the buffer pool to the buffer manager as a new
+     * data page at the end of the file, adding it to the directory and linking
+     * it after the previous last page. The given record count and live bytes
+     * describe the records already on the page; the new page is returned
+     * pinned.
+     */
+    HFPage appendPage(HFPage contents, int recCnt, int recBytes) throws ChainException {
+        HFPage hf = publishPage(contents, recCnt);
+
+        int usedBytes = PAGE_SIZE - HFPage.HEADER_SIZE - hf.getFreeSpace();
+        updateHeader(recCnt, recBytes, usedBytes, 1);
+
+        return hf;
+    }
+
+    /**
+     * Does the work of appendPage without touching the file statistics; the
+     * given count is of the slots in use on the page, for the directory.
+     */
+    private HFPage publishPage(HFPage contents, int recCnt) throws ChainException {
+        // newPage copies the contents into the new frame and points hf at it
+        HFPage hf = new HFPage(contents);
+        PageId pageId;
+
+        try {
+            pageId = BufferPool.newPage(hf, 1);
+        } catch (Exception e) {
+            throw new ChainException(e, "HeapFile.appendPage: Failed to allocate a new page");
+        }
+
+        hf.setCurPage(pageId);
+        BufferPool.logDataPage(headerId.pid, hf);
+
+        // The page's records become visible once it's in the directory, so
+        // that's when they're inserted as far as snapshots go
+        long stamp = versions.stamp();
+        if (stamp != -1) {
+            for (int slotno = hf.nextSlot(-1); slotno != -1; slotno = hf.nextSlot(slotno)) {
+                if (!hf.isMoved(slotno)) {
+                    versions.keep(new RID(pageId, slotno), null, stamp);
+                }
+            }
+        }
+
+        // Add links between the previous last page and the new page. The link
+        // is written without the last page's latch, since no operation on its
+        // slots touches or reads it
+        PageId lastId = directory.addPage(pageId, hf.getFreeSpace(), recCnt);
+        if (lastId != null) {
+            HFPage last = new HFPage();
+
+            BufferPool.pinPage(lastId, last, false);
+            last.setNextPage(pageId);
+            BufferPool.unpinPage(lastId, true);
+        }
+
+        return hf;
+    }
+
+    /**
+     * Logs the contents of a slot of one of the file's data pages, just after
+     * they've changed under the page's exclusive latch.
+     */
+    private void logSlot(HFPage hf, int slotno) {
+        BufferPool.logSlot(headerId.pid, hf, slotno);
+    }
+
+    /**
+     * Applies changes to the file statistics and writes them through to the
+     * header page. A change in used bytes on a data or overflow page that
+     * isn't accounted for by live record bytes is counted as dead bytes. The
+     * counters are read again under the header lock, so whichever thread
+     * writes the header last writes every change made before it.
+     */
+    private void updateHeader(int recDelta, int liveDelta, int usedDelta, int pageDelta) throws ChainException {
+        updateHeader(recDelta, liveDelta, usedDelta, pageDelta, 0);
+    }
+
+    private void updateHeader(int recDelta, int liveDelta, int usedDelta, int pageDelta, int overflowDelta) throws ChainException {
+        this.numRecords.add(recDelta);
+        this.liveBytes.add(liveDelta);
+        this.deadBytes.add(usedDelta - liveDelta);
+        this.pageCnt.addAndGet(pageDelta);
+        this.overflowCnt.addAndGet(overflowDelta);
+
+        HeaderPage header = new HeaderPage();
+
+        synchronized (this.headerLock) {
+            BufferPool.pinPage(this.headerId, header, false);
+            header.setRecCnt(this.numRecords.intValue());
+            header.setLiveBytes(this.liveBytes.sum());
+            header.setDeadBytes(this.deadBytes.sum());
+            header.setPageCnt(this.pageCnt.get());
+            header.setOverflowCnt(this.overflowCnt.get());
+            BufferPool.unpinPage(this.headerId, true);
+        }
+    }
+
 }
@@ -0,0 +1,632 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the changes heap files make to their pages, so that a
+ * change is durable once its log records are, without forcing the pages it
+ * touched. Records are physiological: a change to a slot of a data page is
+ * logged as the page, the slot and the slot's new contents, wherever they
+ * sit on the page, and a page a heap file allocates (data, overflow and
+ * directory pages and file headers) is logged whole once it's filled in. A
+ * freed page is logged too, so nothing logged for it before is redone onto
+ * whatever uses the page next.
+ *
+ * Records are appended to a buffer in memory. Whenever a commit is waiting,
+ * a flusher thread writes out everything buffered and forces it as one
+ * sequential write, so every commit that arrives while a force is under way
+ * shares the next one. A page unpinned dirty stays pinned until the records
+ * of its changes are durable, the background writer skips pinned pages and
+ * a bulk read commits before it writes out the page it reads, so no page
+ * reaches the disk ahead of its log.
+ *
+ * Once the log has grown past CHECKPOINT_BYTES, the flusher takes a
+ * checkpoint after the first write that leaves no page pinned through the
+ * buffer pool: it flushes the pool and empties the log. The log keeps
+ * growing until such a moment comes, which it may not while a scan sits on
+ * a page or writers keep some page pinned all the time; stopping the log
+ * always empties it.
+ *
+ * Redo reads the log from the start and, for each page, puts back its last
+ * logged image and then the last logged contents of each slot changed since,
+ * which is the page as it was when the log ended. The directory entries of
+ * the data pages redone and the statistics of their files are brought up to
+ * date with them, everything is flushed, and the log starts over empty. Each
+ * record is framed by its length and a CRC32, and redo stops at the first
+ * one cut short or failing its check, which is where the crash came.
+ */
+final class HeapLog implements GlobalConst {
+
+    /** Record types: a whole page, a whole data page of a file, a slot, a freed page. */
+    static final byte PAGE = 1;
+    static final byte DATA_PAGE = 2;
+    static final byte SLOT = 3;
+    static final byte FREE = 4;
+
+    /** Time buffered records wait for a commit before they're written anyway. */
+    static final long FLUSH_MILLIS = 10;
+
+    /** Size past which the flusher empties the log once nothing is pinned. */
+    static final long CHECKPOINT_BYTES = 4L << 20;
+
+    /** A dirty page kept pinned until the log is durable up to lsn. */
+    private static final class Pin {
+        final int pid;
+        final long lsn;
+
+        Pin(int pid, long lsn) {
+            this.pid = pid;
+            this.lsn = lsn;
+        }
+    }
+
+    private final FileChannel channel;
+    private final CRC32 crc;
+    private final ArrayDeque<Pin> pins;
+    private final int maxPins;
+    private ByteBuffer buffer;
+    private ByteBuffer spare;
+    private long appended;
+    private long requested;
+    private long durable;
+    private IOException failure;
+    private boolean stopped;
+    private final Thread thread;
+
+    /**
+     * Opens the log file, which redo has left empty, and starts the flusher.
+     */
+    private HeapLog(FileChannel channel) {
+        this.channel = channel;
+        this.crc = new CRC32();
+        this.pins = new ArrayDeque<>();
+        this.maxPins = Math.max(1, Minibase.BufferManager.getNumBuffers() / 4);
+        this.buffer = ByteBuffer.allocate(64 * 1024);
+        this.spare = ByteBuffer.allocate(64 * 1024);
+        this.thread = new Thread(this::run, "heap-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Redoes whatever the log at the given path holds and opens it for new
+     * records. Heap files must not be in use until this returns.
+     *
+     * @throws ChainException if the log can't be read or written
+     */
+    static HeapLog open(String path) throws ChainException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new ChainException(e, "HeapLog.open: Failed to open log '" + path + "'");
+        }
+
+        try {
+            redo(channel);
+        } catch (ChainException e) {
+            close(channel);
+            throw e;
+        }
+
+        return new HeapLog(channel);
+    }
+
+    /**
+     * Logs the whole of a page a heap file has just filled in.
+     */
+    void page(PageId pageId, Page page) {
+        ByteBuffer body = ByteBuffer.allocate(5 + PAGE_SIZE);
+        body.put(PAGE).putInt(pageId.pid).put(page.getData(), 0, PAGE_SIZE);
+        append(body);
+    }
+
+    /**
+     * Logs the whole of a data page of the file whose header is fileId.
+     */
+    void dataPage(int fileId, HFPage page) {
+        ByteBuffer body = ByteBuffer.allocate(9 + PAGE_SIZE);
+        body.put(DATA_PAGE).putInt(fileId).putInt(page.getCurPage().pid).put(page.getData(), 0, PAGE_SIZE);
+        append(body);
+    }
+
+    /**
+     * Logs the contents of a slot of a data page of the file whose header is
+     * fileId, just after they've changed.
+     */
+    void slot(int fileId, HFPage page, int slotno) {
+        int field = page.getSlotField(slotno);
+        byte[] bytes = field == -1 ? new byte[0] : page.getStoredBytes(slotno);
+        ByteBuffer body = ByteBuffer.allocate(17 + bytes.length);
+        body.put(SLOT).putInt(fileId).putInt(page.getCurPage().pid).putInt(slotno).putInt(field).put(bytes);
+        append(body);
+    }
+
+    /**
+     * Logs that a page is being freed.
+     */
+    void free(PageId pageId) {
+        ByteBuffer body = ByteBuffer.allocate(5);
+        body.put(FREE).putInt(pageId.pid);
+        append(body);
+    }
+
+    private synchronized void append(ByteBuffer body) {
+        if (buffer.remaining() < 8 + body.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + 8 + body.capacity()));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        crc.reset();
+        crc.update(body.array(), 0, body.capacity());
+        buffer.putInt(body.capacity()).putInt((int)crc.getValue()).put(body.array(), 0, body.capacity());
+        appended += 8 + body.capacity();
+    }
+
+    /**
+     * Keeps a page that's being unpinned dirty pinned until everything logged
+     * so far is durable, returning false if it already is, in which case the
+     * caller unpins the page itself.
+     */
+    synchronized boolean deferUnpin(PageId pageId) {
+        if (appended == durable) {
+            return false;
+        }
+
+        pins.add(new Pin(pageId.pid, appended));
+        if (pins.size() == maxPins) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until everything logged so far is durable, having the flusher
+     * force it if it isn't under way already.
+     *
+     * @throws ChainException if the log can't be written
+     */
+    synchronized void commit() throws ChainException {
+        long lsn = appended;
+        if (lsn > requested) {
+            requested = lsn;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while (durable < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < lsn) {
+            throw new ChainException(failure, "HeapLog.commit: Failed to write the log");
+        }
+    }
+
+    /**
+     * Commits, stops the flusher and takes a checkpoint: every dirty page is
+     * flushed, so the log is no longer needed and is emptied.
+     */
+    void stop() throws ChainException {
+        commit();
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChainException(e, "HeapLog.stop: Interrupted while stopping the flusher");
+        }
+
+        try {
+            checkpoint(channel);
+        } finally {
+            close(channel);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            ByteBuffer out;
+            long end;
+            synchronized (this) {
+                try {
+                    awaitFlush();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (appended == durable) {
+                    return;
+                }
+
+                out = buffer;
+                buffer = spare;
+                end = appended;
+            }
+
+            try {
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            // The pages are let go before the commits waiting on them return
+            synchronized (this) {
+                while (!pins.isEmpty() && pins.peek().lsn <= end) {
+                    BufferPool.releasePin(new PageId(pins.poll().pid));
+                }
+                durable = end;
+                out.clear();
+                spare = out;
+                notifyAll();
+            }
+
+            try {
+                checkpointIfFull();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a checkpoint once the log has grown past CHECKPOINT_BYTES, if the
+     * buffer pool can be flushed with no page pinned through it; otherwise
+     * the next write tries again. A page stays pinned from before its change
+     * until the change is durable, so with nothing pinned every change logged
+     * is complete and durable, and once the pool is flushed none of the log
+     * is needed. Records buffered meanwhile are written after it's emptied,
+     * and redoing them onto the flushed pages changes nothing.
+     */
+    private void checkpointIfFull() throws IOException {
+        if (channel.size() < CHECKPOINT_BYTES) {
+            return;
+        }
+
+        try {
+            if (!BufferPool.flushIfUnpinned()) {
+                return;
+            }
+        } catch (ChainException e) {
+            // The log is kept whole, so nothing is lost; the next write tries again
+            return;
+        }
+
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /**
+     * Waits until the buffered records should be written: a commit is
+     * waiting for them, a quarter of the buffer pool is kept pinned for
+     * them, they've waited FLUSH_MILLIS, or the log is stopping.
+     */
+    private void awaitFlush() throws InterruptedException {
+        long deadline = 0;
+        while (!stopped && requested <= durable && pins.size() < maxPins) {
+            if (appended == durable) {
+                deadline = 0;
+                wait();
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            if (deadline == 0) {
+                deadline = now + FLUSH_MILLIS;
+            } else if (now >= deadline) {
+                return;
+            }
+            wait(deadline - now);
+        }
+    }
+
+    /**
+     * What the log holds for one page: its last logged image, if any, and
+     * the last logged contents of each slot changed after it.
+     */
+    private static final class PageRedo {
+        int fileId = -1;
+        byte[] image;
+        final TreeMap<Integer, SlotImage> slots = new TreeMap<>();
+    }
+
+    /**
+     * The logged contents of a slot, as getSlotField and getStoredBytes gave
+     * them.
+     */
+    private static final class SlotImage {
+        final int field;
+        final byte[] bytes;
+
+        SlotImage(int field, byte[] bytes) {
+            this.field = field;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Redoes the log held by the channel, then empties it.
+     */
+    private static void redo(FileChannel channel) throws ChainException {
+        LinkedHashMap<Integer, PageRedo> pages = new LinkedHashMap<>();
+
+        try {
+            channel.position(0);
+            read(new BufferedInputStream(Channels.newInputStream(channel)), pages);
+        } catch (IOException e) {
+            throw new ChainException(e, "HeapLog.redo: Failed to read the log");
+        }
+
+        if (pages.isEmpty()) {
+            checkpoint(channel);
+            return;
+        }
+
+        HashMap<Integer, List<PageId>> dataPages = new HashMap<>();
+        for (Map.Entry<Integer, PageRedo> entry : pages.entrySet()) {
+            PageId pageId = new PageId(entry.getKey());
+            PageRedo page = entry.getValue();
+            redoPage(pageId, page);
+            if (page.fileId != -1) {
+                dataPages.computeIfAbsent(page.fileId, fileId -> new ArrayList<>()).add(pageId);
+            }
+        }
+
+        for (Map.Entry<Integer, List<PageId>> entry : dataPages.entrySet()) {
+            resync(new PageId(entry.getKey()), entry.getValue());
+        }
+
+        checkpoint(channel);
+    }
+
+    /**
+     * Reads the log's records into what each page needs redone, up to the
+     * first record that's cut short or damaged.
+     */
+    private static void read(InputStream stream, Map<Integer, PageRedo> pages) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        CRC32 crc = new CRC32();
+
+        while (true) {
+            byte[] body;
+            try {
+                int length = in.readInt();
+                int check = in.readInt();
+                if (length < 5 || length > 17 + PAGE_SIZE) {
+                    return;
+                }
+                body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int)crc.getValue() != check) {
+                    return;
+                }
+            } catch (EOFException e) {
+                return;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            int fileId = type == DATA_PAGE || type == SLOT ? record.getInt() : -1;
+            int pid = record.getInt();
+            PageRedo page;
+
+            switch (type) {
+            case FREE:
+                pages.remove(pid);
+                break;
+            case PAGE:
+            case DATA_PAGE:
+                // An image replaces everything logged for the page before it
+                page = new PageRedo();
+                page.fileId = fileId;
+                page.image = new byte[PAGE_SIZE];
+                record.get(page.image);
+                pages.remove(pid);
+                pages.put(pid, page);
+                break;
+            case SLOT:
+                page = pages.computeIfAbsent(pid, p -> new PageRedo());
+                page.fileId = fileId;
+                int slotno = record.getInt();
+                int field = record.getInt();
+                byte[] bytes = new byte[record.remaining()];
+                record.get(bytes);
+                page.slots.put(slotno, new SlotImage(field, bytes));
+                break;
+            default:
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts a page back as the log last had it. Every slot the log changed is
+     * emptied before any is filled in again, so the page never has to hold
+     * an old version of one slot alongside a new version of another.
+     */
+    private static void redoPage(PageId pageId, PageRedo redo) throws ChainException {
+        HFPage page = new HFPage();
+        BufferPool.pinPage(pageId, page, false);
+
+        try {
+            if (redo.image != null) {
+                System.arraycopy(redo.image, 0, page.getData(), 0, PAGE_SIZE);
+            }
+
+            for (int slotno : redo.slots.keySet()) {
+                if (!page.clearSlot(slotno)) {
+                    throw new ChainException(null, "HeapLog.redo: Page " + pageId.pid + " has no room for slot " + slotno);
+                }
+            }
+            for (Map.Entry<Integer, SlotImage> entry : redo.slots.entrySet()) {
+                SlotImage slot = entry.getValue();
+                if (slot.field != -1 && !page.restoreSlot(entry.getKey(), slot.field, slot.bytes)) {
+                    throw new ChainException(null, "HeapLog.redo: Page " + pageId.pid + " has no room for slot " + entry.getKey());
+                }
+            }
+        } finally {
+            BufferPool.unpinPage(pageId, true);
+        }
+    }
+
+    /**
+     * Brings the directory entries of the given redone data pages of a file
+     * up to date, adding any the directory lost, and counts the file's
+     * statistics again into its header.
+     */
+    private static void resync(PageId headerId, List<PageId> pageIds) throws ChainException {
+        HeaderPage header = new HeaderPage();
+        BufferPool.pinPage(headerId, header, false);
+        HeapDirectory directory = HeapDirectory.open(header.getDirPage());
+        BufferPool.unpinPage(headerId, false);
+
+        ArrayList<PageId> known = new ArrayList<>();
+        ArrayList<Integer> recCnts = new ArrayList<>();
+        directory.readEntries(known, recCnts);
+        HashMap<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < known.size(); i++) {
+            counts.put(known.get(i).pid, recCnts.get(i));
+        }
+
+        HFPage page = new HFPage();
+        for (PageId pageId : pageIds) {
+            BufferPool.pinPage(pageId, page, false);
+            int freeSpace = page.getFreeSpace();
+            int recCnt = 0;
+            for (int slotno = page.nextSlot(-1); slotno != -1; slotno = page.nextSlot(slotno)) {
+                recCnt++;
+            }
+            BufferPool.unpinPage(pageId, false);
+
+            Integer count = counts.get(pageId.pid);
+            if (count != null) {
+                directory.updatePage(pageId, freeSpace, recCnt - count);
+                continue;
+            }
+
+            directory.addPage(pageId, freeSpace, recCnt);
+        }
+
+        recount(headerId, directory);
+    }
+
+    /**
+     * Counts a file's statistics from its pages, as updateHeader would have
+     * kept them, and writes them to its header. The links between the pages
+     * are put back in directory order on the way, as they're written without
+     * being logged.
+     */
+    private static void recount(PageId headerId, HeapDirectory directory) throws ChainException {
+        ArrayList<PageId> pageIds = new ArrayList<>();
+        directory.readEntries(pageIds, null);
+
+        int recCnt = 0;
+        int overflowCnt = 0;
+        long liveBytes = 0;
+        long usedBytes = 0;
+        HFPage page = new HFPage();
+
+        for (int i = 0; i < pageIds.size(); i++) {
+            PageId pageId = pageIds.get(i);
+            int nextId = i + 1 < pageIds.size() ? pageIds.get(i + 1).pid : -1;
+            BufferPool.pinPage(pageId, page, false);
+            boolean relink = page.getNextPage().pid != nextId;
+            if (relink) {
+                page.setNextPage(new PageId(nextId));
+            }
+            usedBytes += PAGE_SIZE - HFPage.HEADER_SIZE - page.getFreeSpace();
+            for (int slotno = page.nextSlot(-1); slotno != -1; slotno = page.nextSlot(slotno)) {
+                recCnt++;
+                if (page.isLarge(slotno)) {
+                    int pages = OverflowChain.pagesFor(page.getLargeLength(slotno));
+                    overflowCnt += pages;
+                    usedBytes += (long)pages * PAGE_SIZE;
+                    liveBytes += page.getLargeLength(slotno);
+                } else {
+                    liveBytes += page.getSlotLength(slotno);
+                }
+            }
+            BufferPool.unpinPage(pageId, relink);
+        }
+
+        HeaderPage header = new HeaderPage();
+        BufferPool.pinPage(headerId, header, false);
+        header.setRecCnt(recCnt);
+        header.setPageCnt(pageIds.size());
+        header.setOverflowCnt(overflowCnt);
+        header.setLiveBytes(liveBytes);
+        header.setDeadBytes(usedBytes - liveBytes);
+        BufferPool.unpinPage(headerId, true);
+    }
+
+    /**
+     * Flushes every dirty page and empties the log, which they make
+     * unnecessary.
+     */
+    private static void checkpoint(FileChannel channel) throws ChainException {
+        BufferPool.flushAll();
+
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new ChainException(e, "HeapLog.checkpoint: Failed to empty the log");
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing was left to write
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package heap;
+
+import global.Page;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The base of the heap layer's page types. Their header fields and slots are
+ * big-endian values in the page's frame, and all of them are read and written
+ * through the accessors here, which use VarHandle views of the frame so each
+ * access is a single bounds-checked load or store. The frame's layout is
+ * never touched any other way, apart from bulk copies of record bytes, so a
+ * different kind of frame would only need new accessors here.
+ */
+abstract class HeapPage extends Page {
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    protected HeapPage() {
+    }
+
+    protected HeapPage(byte[] data) {
+        super(data);
+    }
+
+    protected short getShort(int offset) {
+        return (short)SHORT.get(this.data, offset);
+    }
+
+    protected void setShort(short value, int offset) {
+        SHORT.set(this.data, offset, value);
+    }
+
+    protected int getInt(int offset) {
+        return (int)INT.get(this.data, offset);
+    }
+
+    protected void setInt(int value, int offset) {
+        INT.set(this.data, offset, value);
+    }
+
+    protected long getLong(int offset) {
+        return (long)LONG.get(this.data, offset);
+    }
+
+    protected void setLong(long value, int offset) {
+        LONG.set(this.data, offset, value);
+    }
+}
@@ -0,0 +1,27 @@
+package heap;
+
+import global.RID;
+
+/**
+ * A record read from a heap file, paired with its RID. This is what the
+ * file's streams and spliterators, and a HeapScan used as an Iterator,
+ * return.
+ */
+public class HeapRecord {
+
+    private RID rid;
+    private Tuple tuple;
+
+    public HeapRecord(RID rid, Tuple tuple) {
+        this.rid = rid;
+        this.tuple = tuple;
+    }
+
+    public RID getRID() {
+        return rid;
+    }
+
+    public Tuple getTuple() {
+        return tuple;
+    }
+}
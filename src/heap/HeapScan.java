@@ -7,31 +7,138 @@ import chainexception.ChainException;
 /**
  * A HeapScan object is created only through the function openScan() in the
  * HeapFile class. It supports the getNext interface which will simply retrieve
- * the next record in the file.
+ * the next record in the file, and nextInto, which points a TupleView at the
+ * next record in place and allocates nothing per record. A scan opened with
+ * a ScanSpec skips records that fail its predicates, and getNext returns only
+ * the projected bytes of the ones that pass. The scans made by
+ * openParallelScan each cover their own run of pages and may be used from
+ * different threads at once; their pins and unpins are serialized on the
+ * buffer manager. A scan is also an Iterator over HeapRecords, and can be
+ * closed early in a try-with-resources block to release its pin. Calling
+ * enablePrefetch has the scan read pages into the buffer pool ahead of itself
+ * on a background thread. A record stored in overflow pages is read from them
+ * when it's returned, or when it's checked against the spec's predicates.
+ *
+ * A scan may run while other threads change the file. It holds the current
+ * page's shared latch only while it looks for the next record and copies it
+ * out, so records inserted, updated or deleted on pages the scan hasn't
+ * reached yet may or may not be seen, and a record moved to such a page
+ * while the scan runs may be seen twice or not at all. The scan's own thread
+ * may change the file between calls, as it holds no latch then.
+ *
+ * A scan opened with a Snapshot instead sees the file as it was when the
+ * snapshot was taken. It copies the records the snapshot sees out of each
+ * page in turn, under the page's latch, taking the ones changed since from
+ * the file's VersionStore, so every record the snapshot sees is returned
+ * exactly once whatever is changed while the scan runs. Views filled in by
+ * nextInto then point at those copies rather than into the page.
  */
-public class HeapScan implements GlobalConst {
+public class HeapScan implements GlobalConst, Iterator<HeapRecord>, AutoCloseable {
 
     HeapFile hf;
     HFPage hfPage;
-    RID record;
+    RID cursor;
+    int slot;
+    byte[] large;
+    HeapRecord ahead;
     ArrayList<PageId> pageIds;
     int pageIdIndex = 0;
+    PageId nextDirId;
+    ScanSpec spec;
     boolean open;
+    boolean bulkRead;
+    Prefetcher prefetcher;
+    int prefetchIndex;
+    Snapshot snapshot;
+    ArrayDeque<HeapRecord> snapshotRecords;
+    boolean pageRead;
+    HeapRecord current;
 
     /**
-     * Constructs a file scan by pinning the directory header page and initializing
+     * Constructs a file scan by pinning the first data page and initializing
      * iterator fields.
      */
-    protected HeapScan(HeapFile hf) {
+    protected HeapScan(HeapFile hf) throws ChainException {
+        this(hf, null);
+    }
+
+    /**
+     * Constructs a file scan that only returns what the given spec asks for;
+     * a null spec returns every record in full.
+     */
+    protected HeapScan(HeapFile hf, ScanSpec spec) throws ChainException {
+        this(hf, spec, (Snapshot)null);
+    }
+
+    /**
+     * Constructs a file scan that sees the file as it was when the given
+     * snapshot was taken; a null snapshot sees the file as it changes.
+     */
+    protected HeapScan(HeapFile hf, ScanSpec spec, Snapshot snapshot) throws ChainException {
+        this.hf = hf;
+        this.spec = spec;
+        this.snapshot = snapshot;
+        pageIds = new ArrayList<>();
+        loadDirPage(hf.directory.getRootId());
+
+        init();
+    }
+
+    /**
+     * Constructs a file scan over just the given, non-empty run of data pages.
+     */
+    protected HeapScan(HeapFile hf, ScanSpec spec, List<PageId> pageIds) throws ChainException {
         this.hf = hf;
-        pageIds = hf.pageIds;
+        this.spec = spec;
+        this.pageIds = new ArrayList<>(pageIds);
+        this.nextDirId = new PageId(-1);
+
+        init();
+    }
 
+    private void init() throws ChainException {
         hfPage = new HFPage();
+        cursor = new RID(new PageId(-1), -1);
+        bulkRead = spec != null && spec.isBulkRead() && snapshot == null;
+        if (snapshot != null) {
+            snapshotRecords = new ArrayDeque<>();
+        }
 
-        Minibase.BufferManager.pinPage(pageIds.get(pageIdIndex), hfPage, false);
+        pin(pageIds.get(pageIdIndex));
         open = true;
 
-        record = hfPage.firstRecord();
+        slot = -1;
+    }
+
+    /**
+     * Starts reading the scan's upcoming pages into the buffer pool in the
+     * background, up to the given number of pages ahead of the scan. The
+     * distance actually used adapts to how fast the scan consumes pages
+     * compared to how long a read takes. Has no effect on a bulk-read scan,
+     * since prefetching would fill the buffer pool it reads around.
+     *
+     * @throws IllegalArgumentException if maxPages is less than 1
+     */
+    public void enablePrefetch(int maxPages) {
+        if (bulkRead) {
+            return;
+        }
+
+        prefetcher = new Prefetcher(maxPages);
+        prefetchIndex = pageIdIndex + 1;
+        prefetchAhead();
+    }
+
+    /**
+     * Queues prefetches for the pages of the current directory page that are
+     * within the prefetch distance of the scan and not yet queued.
+     */
+    private void prefetchAhead() {
+        int last = Math.min(pageIdIndex + prefetcher.distance(), pageIds.size() - 1);
+        prefetchIndex = Math.max(prefetchIndex, pageIdIndex + 1);
+        while (prefetchIndex <= last) {
+            prefetcher.prefetch(pageIds.get(prefetchIndex++));
+        }
     }
 
     /**
@@ -41,7 +148,7 @@ public class HeapScan implements GlobalConst {
     protected void finalize() throws Throwable {
         hf = null;
         hfPage = null;
-        record = null;
+        cursor = null;
 
         close();
     }
@@ -50,14 +157,47 @@ public class HeapScan implements GlobalConst {
      * Closes the file scan, releasing any pinned pages.
      */
     public void close() throws ChainException{
-        if (open) Minibase.BufferManager.unpinPage(pageIds.get(pageIdIndex), false);
+        if (open) {
+            unpin(pageIds.get(pageIdIndex));
+        }
+        open = false;
+        ahead = null;
+        current = null;
+        if (snapshotRecords != null) {
+            snapshotRecords.clear();
+        }
     }
 
     /**
-     * Returns true if there are more records to scan, false otherwise.
+     * Returns true if there are more records to scan, false otherwise. This
+     * reads the next record ahead, so a view returned earlier may no longer
+     * be valid afterwards.
      */
     public boolean hasNext() {
-        return pageIdIndex < pageIds.size() - 1;
+        if (ahead == null) {
+            try {
+                ahead = fetchNext();
+            } catch (ChainException e) {
+                throw new IllegalStateException("HeapScan.hasNext: Failed to read the next record", e);
+            }
+        }
+
+        return ahead != null;
+    }
+
+    /**
+     * Gets the next record in the file scan, along with its RID.
+     *
+     * @throws NoSuchElementException if the scan has no more elements
+     */
+    public HeapRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        HeapRecord record = ahead;
+        ahead = null;
+        return record;
     }
 
     /**
@@ -67,33 +207,371 @@ public class HeapScan implements GlobalConst {
      * @throws IllegalStateException if the scan has no more elements
      */
     public Tuple getNext(RID rid) throws Exception {
-        // There is a next record to return
-        if (record != null) {
-            rid.copyRID(record);
-            record = hfPage.nextRecord(record);
+        HeapRecord record = ahead != null ? ahead : fetchNext();
+        ahead = null;
+        if (record == null) {
+            return null;
+        }
+
+        rid.copyRID(record.getRID());
+        return record.getTuple();
+    }
 
-            return new Tuple(hfPage.selectRecord(rid), 0, hfPage.selectRecord(rid).length);
+    /**
+     * Moves the cursor to the next record and copies it out, or returns null
+     * if the scan has no more records.
+     */
+    private HeapRecord fetchNext() throws ChainException {
+        if (!advance()) {
+            return null;
         }
 
-        // There is another page of records to use
-        if (hasNext()) {
-            Minibase.BufferManager.unpinPage(pageIds.get(pageIdIndex++), false);
-            Minibase.BufferManager.pinPage(pageIds.get(pageIdIndex), hfPage, false);
+        try {
+            RID rid = snapshot != null ? current.getRID() : cursor;
+            return new HeapRecord(new RID(new PageId(rid.pageno.pid), rid.slotno), currentTuple());
+        } finally {
+            unlatch();
+        }
+    }
+
+    /**
+     * Copies the record under the cursor, or just its projected bytes, into a
+     * new Tuple.
+     */
+    private Tuple currentTuple() throws ChainException {
+        byte[] data;
+        if (snapshot != null) {
+            Tuple record = current.getTuple();
+            data = spec != null && spec.hasProjection() ? spec.project(record.data, 0, record.getLength()) : record.data;
+        } else if (hfPage.isLarge(slot)) {
+            if (large == null) {
+                large = readLarge(slot);
+            }
+            data = spec != null && spec.hasProjection() ? spec.project(large, 0, large.length) : large;
+        } else if (spec != null && spec.hasProjection()) {
+            data = spec.project(hfPage.getData(), hfPage.getSlotOffset(slot), hfPage.getSlotLength(slot));
+        } else {
+            data = new byte[hfPage.getSlotLength(slot)];
+            System.arraycopy(hfPage.getData(), hfPage.getSlotOffset(slot), data, 0, data.length);
+        }
+        return new Tuple(data, 0, data.length);
+    }
 
-            record = hfPage.firstRecord();
+    /**
+     * Reads the large record whose head is in the given slot of the current
+     * page from its overflow pages.
+     */
+    private byte[] readLarge(int slotno) throws ChainException {
+        return OverflowChain.read(hfPage.getOverflowPage(slotno), hfPage.getLargeLength(slotno));
+    }
 
-            if (record != null) {
-                rid.copyRID(record);
-                record = hfPage.nextRecord(record);
+    /**
+     * Points the given view at the next record in the file scan, in place on
+     * its page. The view is valid until the next call on this scan, and shows
+     * the whole record even if the scan's spec has a projection. If hasNext()
+     * has read the record ahead, the view is pointed at it in place unless
+     * it has since been deleted, moved or updated so it fails the spec's
+     * predicates, in which case the scan moves on.
+     *
+     * @return false if the scan has no more records
+     */
+    public boolean nextInto(TupleView view) throws ChainException {
+        if (snapshot != null) {
+            if (ahead == null && !advance()) {
+                return false;
+            }
+            ahead = null;
+            view.bind(current.getTuple().data, current.getRID());
+            return true;
+        }
 
-                return new Tuple(hfPage.selectRecord(rid), 0, hfPage.selectRecord(rid).length);
+        boolean found = false;
+        if (ahead != null) {
+            ahead = null;
+            latch();
+            try {
+                found = isRecord(slot);
+            } finally {
+                if (!found) {
+                    unlatch();
+                }
             }
         }
 
-        Minibase.BufferManager.unpinPage(pageIds.get(pageIdIndex), false);
-        open = false;
+        if (!found && !advance()) {
+            return false;
+        }
+
+        try {
+            view.bind(hfPage, slot, cursor, bulkRead ? null : pageIds.get(pageIdIndex));
+        } finally {
+            unlatch();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if there are more data pages after the current one.
+     */
+    private boolean hasNextPage() {
+        return pageIdIndex < pageIds.size() - 1 || nextDirId.pid != -1;
+    }
+
+    /**
+     * Moves the cursor to the next record that passes the spec's predicates,
+     * moving on to later pages as needed and unpinning the last one once the
+     * scan is done. Returns true with the current page's shared latch held,
+     * which the caller releases once it has read the record. The next record
+     * is looked for from the cursor's slot, so the caller may delete the
+     * current record in between.
+     */
+    private boolean advance() throws ChainException {
+        if (!open) {
+            return false;
+        }
+        if (snapshot != null) {
+            return advanceSnapshot();
+        }
+
+        while (true) {
+            latch();
+            try {
+                if (nextMatch()) {
+                    return true;
+                }
+            } catch (ChainException | RuntimeException e) {
+                unlatch();
+                throw e;
+            }
+            unlatch();
+
+            if (!hasNextPage()) {
+                close();
+                return false;
+            }
+
+            nextPage();
+            slot = -1;
+        }
+    }
+
+    /**
+     * Moves on from the current page to the next one.
+     */
+    private void nextPage() throws ChainException {
+        unpin(pageIds.get(pageIdIndex++));
+        if (pageIdIndex == pageIds.size()) {
+            loadDirPage(nextDirId);
+        }
+        pin(pageIds.get(pageIdIndex));
+        if (prefetcher != null) {
+            prefetcher.pageConsumed();
+            prefetchAhead();
+        }
+    }
+
+    /**
+     * Does the work of advance for a snapshot scan: moves current to the
+     * next record the snapshot sees that passes the spec's predicates,
+     * reading each page's records as the scan gets to it.
+     */
+    private boolean advanceSnapshot() throws ChainException {
+        while (true) {
+            HeapRecord record;
+            while ((record = snapshotRecords.poll()) != null) {
+                Tuple tuple = record.getTuple();
+                if (spec == null || spec.matches(tuple.data, 0, tuple.getLength())) {
+                    current = record;
+                    return true;
+                }
+            }
+
+            if (pageRead) {
+                if (!hasNextPage()) {
+                    close();
+                    return false;
+                }
+                nextPage();
+            }
+
+            readSnapshotPage();
+            pageRead = true;
+        }
+    }
+
+    /**
+     * Copies the records the scan's snapshot sees out of the current page,
+     * in slot order. A record that hasn't changed since the snapshot was
+     * taken is read from the page, unless it has moved, in which case it's
+     * read from its new page once this one's latch is let go, as readers
+     * take one latch at a time. A record that has changed is read from its
+     * kept versions, including one that has since been deleted.
+     */
+    private void readSnapshotPage() throws ChainException {
+        if (!hf.versions.isOpen(snapshot)) {
+            throw new ChainException(null, "HeapScan.next: Snapshot is closed");
+        }
+
+        PageId pageId = pageIds.get(pageIdIndex);
+        RID rid = new RID(new PageId(pageId.pid), -1);
+        TreeMap<Integer, byte[]> records = new TreeMap<>();
+        ArrayList<Integer> stubs = new ArrayList<>();
+
+        PageLatch.shared(pageId);
+        try {
+            int slotCnt = hfPage.getSlotCount();
+            for (int slotno = 0; slotno < slotCnt; slotno++) {
+                rid.slotno = slotno;
+                if (hfPage.getSlotLength(slotno) == -1 || hfPage.isMoved(slotno) || hf.versions.changedSince(rid, snapshot) != null) {
+                    continue;
+                }
+
+                if (hfPage.isForwarded(slotno)) {
+                    stubs.add(slotno);
+                } else {
+                    records.put(slotno, HeapFile.readRecord(hfPage, slotno));
+                }
+            }
+
+            for (Map.Entry<Long, VersionStore.Version> entry : hf.versions.onPage(pageId).entrySet()) {
+                VersionStore.Version version = entry.getValue();
+                if (version.end > snapshot.asOf) {
+                    byte[] data = VersionStore.visible(version, snapshot);
+                    if (data != null) {
+                        records.put((int)(long)entry.getKey(), data);
+                    }
+                }
+            }
+        } finally {
+            PageLatch.releaseShared(pageId);
+        }
+
+        for (int slotno : stubs) {
+            rid.slotno = slotno;
+            byte[] data = hf.readVisible(rid, snapshot);
+            if (data != null) {
+                records.put(slotno, data);
+            }
+        }
+
+        for (Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+            byte[] data = entry.getValue();
+            snapshotRecords.add(new HeapRecord(new RID(new PageId(pageId.pid), entry.getKey()), new Tuple(data, 0, data.length)));
+        }
+    }
+
+    /**
+     * Moves the cursor to the next record on the latched current page that
+     * passes the spec's predicates, returning false if there's none.
+     */
+    private boolean nextMatch() throws ChainException {
+        for (int slotno = hfPage.nextSlot(slot); slotno != -1; slotno = hfPage.nextSlot(slotno)) {
+            slot = slotno;
+            if (matches(slotno)) {
+                setCursor();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the given slot of the latched current page still holds
+     * a record stored there that passes the spec's predicates, and points the
+     * cursor at it if so. The record may have been updated since it was
+     * read ahead, so the predicates are checked again.
+     */
+    private boolean isRecord(int slotno) throws ChainException {
+        if (slotno >= hfPage.getSlotCount() || hfPage.getSlotLength(slotno) == -1 || hfPage.isForwarded(slotno)
+                || !matches(slotno)) {
+            return false;
+        }
+
+        setCursor();
+        return true;
+    }
+
+    /**
+     * Returns true if the record in the given slot of the latched current
+     * page passes the spec's predicates. A large record is only read here if
+     * the spec has to check it.
+     */
+    private boolean matches(int slotno) throws ChainException {
+        large = null;
+        if (spec == null) {
+            return true;
+        }
+        if (hfPage.isLarge(slotno)) {
+            large = readLarge(slotno);
+            return spec.matches(large, 0, large.length);
+        }
+        return spec.matches(hfPage.getData(), hfPage.getSlotOffset(slotno), hfPage.getSlotLength(slotno));
+    }
+
+    /**
+     * Points the cursor at the record in the current slot; a moved record is
+     * returned under the RID of its stub.
+     */
+    private void setCursor() {
+        if (hfPage.isMoved(slot)) {
+            hfPage.getLinkedRID(slot, cursor);
+        } else {
+            cursor.pageno.pid = pageIds.get(pageIdIndex).pid;
+            cursor.slotno = slot;
+        }
+    }
+
+    /**
+     * Takes the shared latch of the current page. A bulk-read scan reads its
+     * own copy of the page, and a snapshot scan copies its records out, so
+     * neither needs it.
+     */
+    private void latch() {
+        if (!bulkRead && snapshot == null) {
+            PageLatch.shared(pageIds.get(pageIdIndex));
+        }
+    }
+
+    private void unlatch() {
+        if (!bulkRead && snapshot == null) {
+            PageLatch.releaseShared(pageIds.get(pageIdIndex));
+        }
+    }
+
+    /**
+     * Brings the given data page into hfPage, from the buffer pool or, for a
+     * bulk-read scan, straight into hfPage's own buffer.
+     */
+    private void pin(PageId pageId) throws ChainException {
+        if (bulkRead) {
+            PageLatch.shared(pageId);
+            try {
+                BufferPool.readPage(pageId, hfPage);
+            } finally {
+                PageLatch.releaseShared(pageId);
+            }
+        } else {
+            BufferPool.pinPage(pageId, hfPage, false);
+        }
+    }
+
+    private void unpin(PageId pageId) throws ChainException {
+        if (!bulkRead) {
+            BufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    /**
+     * Reads the data page ids listed on the given directory page, restarting
+     * the page index at its first entry.
+     */
+    private void loadDirPage(PageId dirId) throws ChainException {
+        pageIds.clear();
+        nextDirId = hf.directory.readEntries(dirId, pageIds, null);
 
-        return null;
+        pageIdIndex = 0;
+        prefetchIndex = 0;
     }
 
 }
@@ -0,0 +1,145 @@
+package heap;
+
+import global.*;
+
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the records of a heap file, created through the function
+ * spliterator() in the HeapFile class. It covers a run of the file's data
+ * pages and splits by handing half of its remaining pages to a new
+ * spliterator, so the halves can be scanned by different threads at once.
+ * Each page is pinned only while its records are copied out, and the pins and
+ * unpins are serialized on the buffer manager. Sizes come from the record
+ * counts in the directory when the spliterator is made. Other threads may
+ * change the file during the traversal, so they're only estimates, and the
+ * spliterator isn't SIZED. Since no page stays pinned between calls, a
+ * traversal that stops early (findFirst, limit, anyMatch, ...) leaves nothing
+ * pinned and reads no further pages. A record stored in overflow pages is
+ * read from them while its page is pinned. The page's shared latch is held
+ * while its records are copied, so each page is read as it stood at one
+ * moment even if other threads are changing the file.
+ */
+class HeapSpliterator implements Spliterator<HeapRecord> {
+
+    private PageId[] pageIds;
+    private long[] recCntSums;
+    private int index;
+    private int fence;
+    private ArrayDeque<HeapRecord> buffered;
+    private HFPage hfPage;
+
+    /**
+     * Constructs a spliterator over pages [index, fence) of the given pages;
+     * recCntSums[i] holds the total records on the pages before page i.
+     */
+    HeapSpliterator(PageId[] pageIds, long[] recCntSums, int index, int fence) {
+        this.pageIds = pageIds;
+        this.recCntSums = recCntSums;
+        this.index = index;
+        this.fence = fence;
+        this.buffered = new ArrayDeque<>();
+        this.hfPage = new HFPage();
+    }
+
+    public boolean tryAdvance(Consumer<? super HeapRecord> action) {
+        while (buffered.isEmpty() && index < fence) {
+            readPage(pageIds[index++]);
+        }
+
+        HeapRecord record = buffered.poll();
+        if (record == null) {
+            return false;
+        }
+
+        action.accept(record);
+        return true;
+    }
+
+    public void forEachRemaining(Consumer<? super HeapRecord> action) {
+        while (!buffered.isEmpty() || index < fence) {
+            if (buffered.isEmpty()) {
+                readPage(pageIds[index++]);
+            }
+
+            HeapRecord record;
+            while ((record = buffered.poll()) != null) {
+                action.accept(record);
+            }
+        }
+    }
+
+    public Spliterator<HeapRecord> trySplit() {
+        if (!buffered.isEmpty() || fence - index < 2) {
+            return null;
+        }
+
+        int mid = (index + fence) >>> 1;
+        HeapSpliterator prefix = new HeapSpliterator(pageIds, recCntSums, index, mid);
+        index = mid;
+
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return recCntSums[fence] - recCntSums[index] + buffered.size();
+    }
+
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Copies the records of the given page into the buffer, holding the page
+     * pinned and latched only while doing so.
+     */
+    private void readPage(PageId pageId) {
+        PageLatch.shared(pageId);
+        BufferPool.pinPage(pageId, hfPage, false);
+
+        try {
+            for (int slotno = hfPage.nextSlot(-1); slotno != -1; slotno = hfPage.nextSlot(slotno)) {
+                byte[] record;
+                if (hfPage.isLarge(slotno)) {
+                    record = readLarge(slotno);
+                } else {
+                    record = new byte[hfPage.getSlotLength(slotno)];
+                    System.arraycopy(hfPage.getData(), hfPage.getSlotOffset(slotno), record, 0, record.length);
+                }
+                RID rid = new RID(new PageId(pageId.pid), slotno);
+                if (hfPage.isMoved(slotno)) {
+                    hfPage.getLinkedRID(slotno, rid);
+                }
+                buffered.add(new HeapRecord(rid, new Tuple(record, 0, record.length)));
+            }
+        } finally {
+            try {
+                unpin(pageId);
+            } finally {
+                PageLatch.releaseShared(pageId);
+            }
+        }
+    }
+
+    /**
+     * Reads the large record whose head is in the given slot of the pinned
+     * page from its overflow pages.
+     */
+    private byte[] readLarge(int slotno) {
+        try {
+            return OverflowChain.read(hfPage.getOverflowPage(slotno), hfPage.getLargeLength(slotno));
+        } catch (Exception e) {
+            throw new IllegalStateException("HeapSpliterator.readLarge: Failed to read overflow pages", e);
+        }
+    }
+
+    private static void unpin(PageId pageId) {
+        try {
+            BufferPool.unpinPage(pageId, false);
+        } catch (Exception e) {
+            throw new IllegalStateException("HeapSpliterator.unpin: Failed to unpin page " + pageId.pid, e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package heap;
+
+import global.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The data pages a heap file's inserts are filling. Inserting threads are
+ * spread over LANES lanes by thread id, and each lane keeps the page it is
+ * filling as its target, so an insert usually goes straight to its lane's
+ * page without a directory lookup. Other lanes pass over a claimed page when
+ * they look for one of their own, so threads inserting at once fill
+ * different pages and don't wait on each other's latches. A lane gives its
+ * page back when a record doesn't fit on it, and a lane that hasn't inserted
+ * for IDLE_MILLIS no longer keeps other lanes off its page.
+ */
+final class InsertLanes {
+
+    /** Number of lanes; a power of two, at least 16 and twice the processors. */
+    static final int LANES = Math.max(16, Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    /** Time after which an unused lane's page may be taken by another. */
+    static final long IDLE_MILLIS = 50;
+
+    private static final class Lane {
+        int pid = -1;
+        volatile long lastUsed;
+    }
+
+    private final Lane[] lanes;
+    private final ConcurrentHashMap<Integer, Lane> claims;
+
+    InsertLanes() {
+        this.lanes = new Lane[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new Lane();
+        }
+        this.claims = new ConcurrentHashMap<>();
+    }
+
+    private Lane lane() {
+        return lanes[(int)Thread.currentThread().getId() & (LANES - 1)];
+    }
+
+    /**
+     * Gets the page the current thread's lane is filling, or null if it has
+     * none.
+     */
+    PageId target() {
+        Lane lane = lane();
+        synchronized (lane) {
+            lane.lastUsed = System.currentTimeMillis();
+            return lane.pid == -1 ? null : new PageId(lane.pid);
+        }
+    }
+
+    /**
+     * Makes the given page the one the current thread's lane is filling, in
+     * place of the page it had.
+     */
+    void claim(PageId pageId) {
+        Lane lane = lane();
+        synchronized (lane) {
+            if (lane.pid != -1) {
+                claims.remove(lane.pid, lane);
+            }
+            lane.pid = pageId.pid;
+            lane.lastUsed = System.currentTimeMillis();
+            claims.put(pageId.pid, lane);
+        }
+    }
+
+    /**
+     * Gives back the given page if it's the one the current thread's lane is
+     * filling.
+     */
+    void release(PageId pageId) {
+        Lane lane = lane();
+        synchronized (lane) {
+            if (lane.pid == pageId.pid) {
+                claims.remove(lane.pid, lane);
+                lane.pid = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns true if another lane that has inserted recently is filling the
+     * given page.
+     */
+    boolean isClaimed(PageId pageId) {
+        Lane owner = claims.get(pageId.pid);
+        return owner != null && owner != lane() && System.currentTimeMillis() - owner.lastUsed < IDLE_MILLIS;
+    }
+
+    /**
+     * Gives back every lane's page.
+     */
+    void clear() {
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                lane.pid = -1;
+            }
+        }
+        claims.clear();
+    }
+}
@@ -0,0 +1,113 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only memory mapping of the database file, which holds page i at
+ * byte i * PAGE_SIZE. Reading a page copies it straight out of the mapping,
+ * with no system call and with readahead left to the OS page cache. The file
+ * is mapped in chunks of CHUNK_PAGES pages, each mapped when it's first read
+ * and mapped again when a page past the end of its mapping is read, since the
+ * file grows as pages are allocated. Writes still go through the disk
+ * manager; on Linux and the other platforms Java supports, those reach the
+ * same page cache the mapping reads from.
+ */
+class MappedDisk implements GlobalConst, AutoCloseable {
+
+    /** Pages per mapped chunk, keeping each mapping well under 2 GB. */
+    static final int CHUNK_PAGES = (1 << 30) / PAGE_SIZE;
+
+    private FileChannel channel;
+    private MappedByteBuffer[] chunks;
+
+    /**
+     * Maps the given database file.
+     *
+     * @throws ChainException if the file can't be opened
+     */
+    MappedDisk(String path) throws ChainException {
+        try {
+            Path file = Paths.get(path);
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new ChainException(e, "MappedDisk.MappedDisk: Failed to open " + path);
+        }
+
+        this.chunks = new MappedByteBuffer[0];
+    }
+
+    /**
+     * Copies the given page out of the mapping into the caller's page. Only
+     * finding the page's chunk is serialized; the copy itself isn't, so
+     * several scans can read at once.
+     *
+     * @throws ChainException if the page is past the end of the file
+     */
+    void readPage(PageId pageId, Page page) throws ChainException {
+        int pos = (pageId.pid % CHUNK_PAGES) * PAGE_SIZE;
+        ByteBuffer chunk = chunkFor(pageId.pid / CHUNK_PAGES, pos + PAGE_SIZE);
+        if (chunk == null) {
+            throw new ChainException(null, "MappedDisk.readPage: Page " + pageId.pid + " is past the end of the file");
+        }
+
+        chunk.position(pos);
+        chunk.get(page.getData(), 0, PAGE_SIZE);
+    }
+
+    /**
+     * Returns a view of the given chunk that covers at least the given number
+     * of bytes, mapping it again if need be, or null if the file isn't that
+     * long yet.
+     */
+    private synchronized ByteBuffer chunkFor(int chunkno, int minSize) throws ChainException {
+        MappedByteBuffer chunk = chunkno < chunks.length ? chunks[chunkno] : null;
+        if (chunk == null || chunk.capacity() < minSize) {
+            chunk = map(chunkno);
+        }
+
+        return chunk.capacity() < minSize ? null : chunk.duplicate();
+    }
+
+    /**
+     * Maps as much of the given chunk as the file holds now.
+     */
+    private MappedByteBuffer map(int chunkno) throws ChainException {
+        if (chunkno >= chunks.length) {
+            MappedByteBuffer[] grown = new MappedByteBuffer[chunkno + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+
+        try {
+            long start = (long)chunkno * CHUNK_PAGES * PAGE_SIZE;
+            long size = Math.max(0, Math.min(channel.size() - start, (long)CHUNK_PAGES * PAGE_SIZE));
+            chunks[chunkno] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } catch (IOException e) {
+            throw new ChainException(e, "MappedDisk.map: Failed to map chunk " + chunkno);
+        }
+
+        return chunks[chunkno];
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they're garbage
+     * collected, but no more pages can be read.
+     */
+    public synchronized void close() throws ChainException {
+        chunks = new MappedByteBuffer[0];
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new ChainException(e, "MappedDisk.close: Failed to close the file");
+        }
+    }
+}
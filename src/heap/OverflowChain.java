@@ -0,0 +1,264 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The overflow pages holding a record too large for a data page, TOAST
+ * style: the record's slot on its data page is only a head holding the
+ * record's length and the id of the first page, and the bytes are spread in
+ * order over a chain of OverflowPages, each filled before the next is
+ * started. Records are written from and read into streams and buffers a page
+ * at a time, so a large record never has to be held in one array, and a page
+ * is only pinned while it's being filled or copied from.
+ */
+class OverflowChain implements GlobalConst {
+
+    PageId first;
+    int length;
+    int pageCnt;
+
+    private OverflowChain() {
+    }
+
+    /**
+     * Gets the number of overflow pages a record of the given length takes.
+     */
+    static int pagesFor(long length) {
+        return (int)((length + OverflowPage.CAPACITY - 1) / OverflowPage.CAPACITY);
+    }
+
+    /**
+     * Where write() takes a record's bytes from; read works like
+     * InputStream.read.
+     */
+    private interface Source {
+        int read(byte[] dst, int off, int len) throws IOException;
+    }
+
+    /**
+     * Writes everything left in the stream to a new chain of overflow pages.
+     *
+     * @throws ChainException if the stream fails or holds more than
+     * Integer.MAX_VALUE bytes; the pages written so far are freed
+     */
+    static OverflowChain write(InputStream in) throws ChainException {
+        return write(in::read);
+    }
+
+    /**
+     * Writes the bytes from the buffer's position to its limit to a new chain
+     * of overflow pages.
+     */
+    static OverflowChain write(ByteBuffer src) throws ChainException {
+        return write((dst, off, len) -> {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+
+            int n = Math.min(len, src.remaining());
+            src.get(dst, off, n);
+            return n;
+        });
+    }
+
+    private static OverflowChain write(Source in) throws ChainException {
+        OverflowChain chain = new OverflowChain();
+        OverflowPage last = null;
+        PageId lastId = null;
+        PageId pageId = null;
+        long length = 0;
+        boolean written = false;
+
+        // lastId is the end of the chain so far and pageId a page allocated
+        // but not yet linked to it; both stay pinned until they're filled
+        try {
+            while (true) {
+                OverflowPage page = new OverflowPage();
+                pageId = BufferPool.newPage(page, 1);
+                int n = fill(in, page);
+
+                // The stream ended exactly at the end of the last page
+                if (n == 0 && last != null) {
+                    PageId emptyId = pageId;
+                    pageId = null;
+                    BufferPool.unpinPage(emptyId, false);
+                    BufferPool.freePage(emptyId);
+                    break;
+                }
+
+                page.setDataLength(n);
+                if (last == null) {
+                    chain.first = pageId;
+                } else {
+                    last.setNextPage(pageId);
+                    BufferPool.logPage(lastId, last);
+                    BufferPool.unpinPage(lastId, true);
+                }
+                last = page;
+                lastId = pageId;
+                pageId = null;
+                chain.pageCnt++;
+
+                length += n;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Record is longer than Integer.MAX_VALUE bytes");
+                }
+                if (n < OverflowPage.CAPACITY) {
+                    break;
+                }
+            }
+
+            // Each page is logged whole once it's linked to the next
+            BufferPool.logPage(lastId, last);
+            BufferPool.unpinPage(lastId, true);
+            written = true;
+        } catch (IOException e) {
+            throw new ChainException(e, "OverflowChain.write: Failed to read the record");
+        } finally {
+            if (!written) {
+                discard(pageId, lastId, chain.first);
+            }
+        }
+
+        chain.length = (int)length;
+        return chain;
+    }
+
+    /**
+     * Lets go of a chain write() gave up on: unpins and frees the page it
+     * hadn't linked yet and the chain so far, if there are any. A failure
+     * here is dropped, so the one that stopped the write is reported.
+     */
+    private static void discard(PageId pageId, PageId lastId, PageId first) {
+        try {
+            if (pageId != null) {
+                BufferPool.unpinPage(pageId, false);
+                BufferPool.freePage(pageId);
+            }
+            if (lastId != null) {
+                BufferPool.unpinPage(lastId, true);
+                free(first);
+            }
+        } catch (ChainException e) {
+            // The pages stay allocated
+        }
+    }
+
+    /**
+     * Reads from the stream into the page until it's full or the stream ends,
+     * returning the number of bytes read.
+     */
+    private static int fill(Source in, OverflowPage page) throws IOException {
+        int n = 0;
+        int read;
+        while (n < OverflowPage.CAPACITY
+                && (read = in.read(page.getData(), OverflowPage.HEADER_SIZE + n, OverflowPage.CAPACITY - n)) != -1) {
+            n += read;
+        }
+
+        return n;
+    }
+
+    /**
+     * Copies a whole record from its chain into the buffer, from its position
+     * on.
+     */
+    static void read(PageId first, ByteBuffer dst) throws ChainException {
+        OverflowPage page = new OverflowPage();
+        PageId pageId = new PageId(first.pid);
+
+        while (pageId.pid != -1) {
+            BufferPool.pinPage(pageId, page, false);
+            dst.put(page.getData(), OverflowPage.HEADER_SIZE, page.getDataLength());
+            int next = page.getNextPage().pid;
+            BufferPool.unpinPage(pageId, false);
+            pageId.pid = next;
+        }
+    }
+
+    /**
+     * Copies a whole record from its chain into a new array.
+     */
+    static byte[] read(PageId first, int length) throws ChainException {
+        byte[] record = new byte[length];
+        read(first, ByteBuffer.wrap(record));
+        return record;
+    }
+
+    /**
+     * Frees every page of the chain.
+     */
+    static void free(PageId first) throws ChainException {
+        OverflowPage page = new OverflowPage();
+        PageId pageId = new PageId(first.pid);
+
+        while (pageId.pid != -1) {
+            BufferPool.pinPage(pageId, page, false);
+            int next = page.getNextPage().pid;
+            BufferPool.unpinPage(pageId, false);
+            BufferPool.freePage(pageId);
+            pageId = new PageId(next);
+        }
+    }
+
+    /**
+     * A stream over a record's chain. Each read pins the page it copies from
+     * only for that call, so the stream holds no pins between reads and
+     * needs no closing.
+     */
+    static class Reader extends InputStream {
+
+        private OverflowPage page;
+        private PageId pageId;
+        private int pos;
+        private long remaining;
+
+        Reader(PageId first, int length) {
+            this.page = new OverflowPage();
+            this.pageId = new PageId(first.pid);
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            try {
+                BufferPool.pinPage(pageId, page, false);
+                int n = (int)Math.min(Math.min(len, page.getDataLength() - pos), remaining);
+                System.arraycopy(page.getData(), OverflowPage.HEADER_SIZE + pos, b, off, n);
+                pos += n;
+                remaining -= n;
+
+                PageId current = new PageId(pageId.pid);
+                if (pos == page.getDataLength()) {
+                    pageId = page.getNextPage();
+                    pos = 0;
+                }
+                BufferPool.unpinPage(current, false);
+
+                return n;
+            } catch (ChainException e) {
+                throw new IOException("OverflowChain.Reader.read: Failed to read page " + pageId.pid, e);
+            }
+        }
+
+        public int available() {
+            return (int)Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
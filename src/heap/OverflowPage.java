@@ -0,0 +1,47 @@
+package heap;
+
+import global.GlobalConst;
+import global.Page;
+import global.PageId;
+
+/**
+ * A page of an OverflowChain, holding part of a record too large for a data
+ * page. Overflow pages aren't listed in the directory; they're reached only
+ * through the head of their record, and each points to the next page of the
+ * chain.
+ */
+class OverflowPage extends HeapPage implements GlobalConst {
+    protected static final int NEXT_PAGE = 0;
+    protected static final int DATA_LEN = 4;
+    protected static final int HEADER_SIZE = 8;
+    protected static final int CAPACITY = PAGE_SIZE - HEADER_SIZE;
+
+    public OverflowPage() {
+        this.initDefaults();
+    }
+
+    public OverflowPage(Page page) {
+        super(page.getData());
+    }
+
+    protected void initDefaults() {
+        this.setInt(-1, NEXT_PAGE);
+        this.setInt(0, DATA_LEN);
+    }
+
+    public PageId getNextPage() {
+        return new PageId(this.getInt(NEXT_PAGE));
+    }
+
+    public void setNextPage(PageId pageno) {
+        this.setInt(pageno.pid, NEXT_PAGE);
+    }
+
+    public int getDataLength() {
+        return this.getInt(DATA_LEN);
+    }
+
+    public void setDataLength(int length) {
+        this.setInt(length, DATA_LEN);
+    }
+}
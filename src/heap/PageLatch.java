@@ -0,0 +1,116 @@
+package heap;
+
+import global.*;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write latches on the heap layer's data pages. A pin only keeps a page
+ * in its frame; a thread reading a page's slots holds its shared latch, and a
+ * thread changing them holds its exclusive one. Latches are striped by page
+ * id over STRIPES locks, so they cost nothing per page, and two pages may
+ * share a stripe. The locks are reentrant, so a thread holding one page's
+ * exclusive latch can always take that of another page on the same stripe.
+ *
+ * To stay free of deadlocks, a thread only ever waits for a latch while it
+ * holds none. A writer that needs a second page, such as the page a record
+ * has moved to, takes its latch with tryExclusive and, if that fails,
+ * releases what it holds and starts over. A reader holds one latch at a time
+ * and follows a stub by releasing the stub's page before latching the next.
+ *
+ * Each stripe also has a version, which a writer bumps to odd when it takes
+ * the stripe's exclusive latch and back to even when it lets go, as in a
+ * seqlock. A reader that only copies a few bytes can skip the latch: it
+ * takes a stamp with optimistic, copies what it needs from the pinned page,
+ * and keeps the copy only if validate says no writer has had the stripe
+ * since. The versions are spread a cache line apart, so readers touching
+ * different stripes share no lines, and readers write nothing at all.
+ */
+final class PageLatch {
+
+    /** Number of latch stripes; a power of two. */
+    static final int STRIPES = 256;
+
+    /** Longs per version, putting each stripe's on a cache line of its own. */
+    private static final int PAD = 8;
+
+    private static final ReentrantReadWriteLock[] LATCHES = new ReentrantReadWriteLock[STRIPES];
+    private static final AtomicLongArray VERSIONS = new AtomicLongArray(STRIPES * PAD);
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LATCHES[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private PageLatch() {
+    }
+
+    private static ReentrantReadWriteLock of(PageId pageId) {
+        return LATCHES[pageId.pid & (STRIPES - 1)];
+    }
+
+    private static int version(PageId pageId) {
+        return (pageId.pid & (STRIPES - 1)) * PAD;
+    }
+
+    static void shared(PageId pageId) {
+        of(pageId).readLock().lock();
+    }
+
+    static void releaseShared(PageId pageId) {
+        of(pageId).readLock().unlock();
+    }
+
+    static void exclusive(PageId pageId) {
+        ReentrantReadWriteLock.WriteLock latch = of(pageId).writeLock();
+        latch.lock();
+        if (latch.getHoldCount() == 1) {
+            VERSIONS.incrementAndGet(version(pageId));
+        }
+    }
+
+    /**
+     * Takes the page's exclusive latch if no other thread holds its stripe,
+     * returning false without waiting otherwise.
+     */
+    static boolean tryExclusive(PageId pageId) {
+        ReentrantReadWriteLock.WriteLock latch = of(pageId).writeLock();
+        if (!latch.tryLock()) {
+            return false;
+        }
+        if (latch.getHoldCount() == 1) {
+            VERSIONS.incrementAndGet(version(pageId));
+        }
+        return true;
+    }
+
+    static void releaseExclusive(PageId pageId) {
+        ReentrantReadWriteLock.WriteLock latch = of(pageId).writeLock();
+        if (latch.getHoldCount() == 1) {
+            VERSIONS.incrementAndGet(version(pageId));
+        }
+        latch.unlock();
+    }
+
+    /**
+     * Returns a stamp for an optimistic read of the page, or -1 if a writer
+     * holds its stripe now.
+     */
+    static long optimistic(PageId pageId) {
+        long stamp = VERSIONS.get(version(pageId));
+        return (stamp & 1) == 0 ? stamp : -1;
+    }
+
+    /**
+     * Returns true if no writer has taken the page's stripe since the given
+     * stamp was handed out, so what was read in between is whole.
+     */
+    static boolean validate(PageId pageId, long stamp) {
+        // Keep the reads of the page from moving past the version check
+        VarHandle.acquireFence();
+        return VERSIONS.get(version(pageId)) == stamp;
+    }
+}
@@ -0,0 +1,88 @@
+package heap;
+
+import global.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads pages into the buffer pool ahead of a sequential scan, on a background
+ * I/O thread shared by all scans, so the scan finds them already there when it
+ * reaches them instead of waiting on a disk read at every page boundary. The
+ * prefetched pages are only pinned while they're being read in. How far ahead
+ * to read adapts to the scan: it's the number of pages the scan gets through
+ * in the time one read takes, between 1 and the configured maximum, so a scan
+ * that's waiting on the disk reads further ahead than one that isn't.
+ */
+class Prefetcher {
+
+    /** Weight given to the newest sample in the running averages. */
+    private static final double ALPHA = 0.25;
+
+    private static final ExecutorService IO_THREAD = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "heap-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int maxPages;
+    private HFPage scratch;
+    private volatile double readNanos;
+    private double consumeNanos;
+    private long lastPageNanos;
+
+    Prefetcher(int maxPages) {
+        if (maxPages < 1) {
+            throw new IllegalArgumentException("Invalid prefetch distance");
+        }
+
+        this.maxPages = maxPages;
+        this.scratch = new HFPage();
+        this.lastPageNanos = System.nanoTime();
+    }
+
+    /**
+     * Records that the scan has moved on to its next page.
+     */
+    void pageConsumed() {
+        long now = System.nanoTime();
+        consumeNanos = average(consumeNanos, now - lastPageNanos);
+        lastPageNanos = now;
+    }
+
+    /**
+     * Returns how many pages past the current one the scan should keep
+     * prefetched.
+     */
+    int distance() {
+        if (consumeNanos == 0 || readNanos == 0) {
+            return 1;
+        }
+
+        return (int)Math.max(1, Math.min(maxPages, Math.ceil(readNanos / consumeNanos)));
+    }
+
+    /**
+     * Queues the given page to be read into the buffer pool. Prefetching is
+     * only a hint, so a page that can't be read (because it has since been
+     * freed, say) is skipped.
+     */
+    void prefetch(PageId pageId) {
+        IO_THREAD.execute(() -> {
+            long start = System.nanoTime();
+
+            try {
+                BufferPool.pinPage(pageId, scratch, false);
+                BufferPool.unpinPage(pageId, false);
+            } catch (Exception e) {
+                return;
+            }
+
+            readNanos = average(readNanos, System.nanoTime() - start);
+        });
+    }
+
+    private static double average(double avg, long sample) {
+        return avg == 0 ? sample : avg + ALPHA * (sample - avg);
+    }
+}
@@ -0,0 +1,149 @@
+package heap;
+
+import java.util.ArrayList;
+
+/**
+ * Describes which records a heap file scan should return and which of their
+ * bytes, so the scan can check records and cut out the wanted bytes directly
+ * on the page, without first copying every record into a Tuple. Records must
+ * pass every predicate added with where() or whereInt(). If any byte ranges
+ * are added with project(), getNext returns just those ranges of each record,
+ * concatenated in the order they were added; ranges that run past the end of
+ * a record are cut short. A scan with bulkRead() set reads its data pages
+ * into a frame of its own instead of the shared buffer pool, so a scan of a
+ * large file doesn't evict the pages other work is using.
+ */
+public class ScanSpec {
+
+    /** Comparison operators for whereInt. */
+    public enum Op { EQ, NE, LT, LE, GT, GE }
+
+    /**
+     * A test on the bytes of a record, given as the page's data array along
+     * with the record's offset and length within it. Implementations must not
+     * modify the array.
+     */
+    public interface RecordPredicate {
+        boolean test(byte[] data, int offset, int length);
+    }
+
+    private ArrayList<RecordPredicate> predicates;
+    private ArrayList<int[]> ranges;
+    private boolean bulkRead;
+
+    public ScanSpec() {
+        predicates = new ArrayList<>();
+        ranges = new ArrayList<>();
+    }
+
+    /**
+     * Only returns records that pass the given predicate.
+     */
+    public ScanSpec where(RecordPredicate predicate) {
+        predicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * Only returns records whose int at the given position, read the same way
+     * as Convert.getIntValue, compares to the given value with the given
+     * operator. Records too short to hold the int never match.
+     */
+    public ScanSpec whereInt(int pos, Op op, int value) {
+        return where((data, offset, length) -> {
+            if (pos < 0 || pos + 4 > length) {
+                return false;
+            }
+
+            int i = offset + pos;
+            int field = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+
+            switch (op) {
+                case EQ: return field == value;
+                case NE: return field != value;
+                case LT: return field < value;
+                case LE: return field <= value;
+                case GT: return field > value;
+                default: return field >= value;
+            }
+        });
+    }
+
+    /**
+     * Adds a range of bytes to return from each record.
+     *
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    public ScanSpec project(int pos, int length) {
+        if (pos < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid projection range");
+        }
+
+        ranges.add(new int[] { pos, length });
+        return this;
+    }
+
+    /**
+     * Reads the data pages through the scan's own frame, leaving the buffer
+     * pool as it was. Each page is read from disk even if the pool already
+     * holds it, so this suits scans of files much larger than the pool. Once
+     * HeapFile.mapDatabase has been called, the pages are copied out of a
+     * memory mapping of the database file instead.
+     */
+    public ScanSpec bulkRead() {
+        bulkRead = true;
+        return this;
+    }
+
+    /**
+     * Returns true if the scan should read around the buffer pool.
+     */
+    boolean isBulkRead() {
+        return bulkRead;
+    }
+
+    /**
+     * Returns true if the record passes every predicate.
+     */
+    boolean matches(byte[] data, int offset, int length) {
+        for (int i = 0; i < predicates.size(); i++) {
+            if (!predicates.get(i).test(data, offset, length)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if only some byte ranges of each record are wanted.
+     */
+    boolean hasProjection() {
+        return !ranges.isEmpty();
+    }
+
+    /**
+     * Copies the projected byte ranges of the record into a new array.
+     */
+    byte[] project(byte[] data, int offset, int length) {
+        int size = 0;
+        for (int[] range : ranges) {
+            size += clip(range, length);
+        }
+
+        byte[] result = new byte[size];
+        int pos = 0;
+        for (int[] range : ranges) {
+            int n = clip(range, length);
+            System.arraycopy(data, offset + range[0], result, pos, n);
+            pos += n;
+        }
+
+        return result;
+    }
+
+    private static int clip(int[] range, int length) {
+        return Math.max(0, Math.min(range[1], length - range[0]));
+    }
+}
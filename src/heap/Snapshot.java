@@ -0,0 +1,30 @@
+package heap;
+
+/**
+ * A view of a heap file as it was at the moment the snapshot was taken, made
+ * by HeapFile.openSnapshot. A scan opened with the snapshot, or a getRecord
+ * given it, sees each record as it was then: records inserted since are left
+ * out, and records updated or deleted since are read from the versions the
+ * file keeps while snapshots are open (see VersionStore). Neither readers
+ * nor writers wait for each other beyond the page latches every operation
+ * takes, so a long scan can run alongside changes to the file. A snapshot
+ * should be closed once it's no longer needed, so the versions only it could
+ * see are vacuumed; it can't be used after that.
+ */
+public class Snapshot implements AutoCloseable {
+
+    private final VersionStore versions;
+    volatile long asOf;
+
+    Snapshot(VersionStore versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * Closes the snapshot, dropping the versions of records only it could
+     * still see. Closing it again has no effect.
+     */
+    public void close() {
+        versions.close(this);
+    }
+}
@@ -0,0 +1,328 @@
+package heap;
+
+import chainexception.ChainException;
+import global.*;
+
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+
+/**
+ * A read-only view of a record in place on its page in the buffer pool, so the
+ * record can be read without copying it or allocating anything per record.
+ * A view is filled in by HeapFile.getRecord(RID, TupleView), which pins the
+ * record's page until the view is released or reused, or by a scan, which
+ * keeps the page pinned itself until it moves on. Either way the view is only
+ * valid until then; copy the bytes out (or use toTuple) to keep them longer.
+ * A record stored in overflow pages has no place on a single page, so it's
+ * copied into a buffer the view owns instead, which grows as needed and is
+ * reused for later large records. One view can be reused for any number of
+ * records.
+ *
+ * The view holds no latch on the page. Instead it keeps a stamp of the page's
+ * latch (see PageLatch.optimistic) from when it was filled in, and every
+ * accessor checks the stamp after reading. If a writer has had the page
+ * since, the accessor re-reads the record from the page under its shared
+ * latch and reads again, so it never returns bytes torn by a change; if the
+ * record has been deleted or moved off the page meanwhile, it throws
+ * ConcurrentModificationException. A buffer from asByteBuffer reads the page
+ * directly, so reads through it are only whole if isStable says so after.
+ */
+public class TupleView implements AutoCloseable {
+
+    private HFPage page;
+    private PageId pageId;
+    private RID rid;
+    private byte[] data;
+    private byte[] large;
+    private int offset;
+    private int length;
+    private boolean pinned;
+    private HFPage source;
+    private int slotno;
+    private boolean watched;
+    private long stamp;
+
+    public TupleView() {
+        this.page = new HFPage();
+        this.pageId = new PageId(-1);
+        this.rid = new RID(new PageId(-1), -1);
+    }
+
+    /**
+     * Returns true if the view currently refers to a record.
+     */
+    public boolean isValid() {
+        return data != null;
+    }
+
+    /**
+     * Gets the length of the record, in bytes.
+     */
+    public int getLength() {
+        int n;
+        do {
+            checkValid();
+            n = length;
+        } while (!settled());
+        return n;
+    }
+
+    /**
+     * Copies the id of the record into the given RID.
+     */
+    public void getRID(RID out) {
+        checkValid();
+        out.copyRID(rid);
+    }
+
+    public byte getByte(int pos) {
+        byte value;
+        do {
+            checkRange(pos, 1);
+            value = data[offset + pos];
+        } while (!settled());
+        return value;
+    }
+
+    public short getShort(int pos) {
+        short value;
+        do {
+            checkRange(pos, 2);
+            int i = offset + pos;
+            value = (short)(((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF));
+        } while (!settled());
+        return value;
+    }
+
+    public int getInt(int pos) {
+        int value;
+        do {
+            checkRange(pos, 4);
+            int i = offset + pos;
+            value = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+        } while (!settled());
+        return value;
+    }
+
+    public float getFloat(int pos) {
+        return Float.intBitsToFloat(getInt(pos));
+    }
+
+    /**
+     * Copies the record into the given array at the given position.
+     */
+    public void copyTo(byte[] dst, int dstPos) {
+        do {
+            checkValid();
+            System.arraycopy(data, offset, dst, dstPos, length);
+        } while (!settled());
+    }
+
+    /**
+     * Returns a read-only buffer over the record's bytes in the page. The
+     * buffer itself is a small new object, but the bytes aren't copied.
+     */
+    public ByteBuffer asByteBuffer() {
+        checkValid();
+        settled();
+        return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the record into a new Tuple.
+     */
+    public Tuple toTuple() {
+        byte[] record;
+        do {
+            checkValid();
+            record = new byte[length];
+            System.arraycopy(data, offset, record, 0, length);
+        } while (!settled());
+        return new Tuple(record, 0, record.length);
+    }
+
+    /**
+     * Returns true if no writer has had the record's page since the view was
+     * filled in, so everything read from the view, through a buffer from
+     * asByteBuffer included, is whole. A view of a copy is always stable.
+     */
+    public boolean isStable() {
+        checkValid();
+        return !watched || PageLatch.validate(pageId, stamp);
+    }
+
+    /**
+     * Releases the view, unpinning the record's page if the view pinned it.
+     */
+    public void release() throws ChainException {
+        data = null;
+        source = null;
+        watched = false;
+        if (pinned) {
+            pinned = false;
+            BufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    /**
+     * Same as release(), so views can be used in try-with-resources.
+     */
+    public void close() throws ChainException {
+        release();
+    }
+
+    /**
+     * Pins the given record's page for the view, or the page the record has
+     * been moved to, and points the view at the record. Each page's shared
+     * latch is held only while it's read, and a moved record is checked to
+     * still belong to its stub once its page is latched. The view must have
+     * been released first.
+     *
+     * @throws IllegalArgumentException if the rid is invalid
+     */
+    void pinAndBind(RID rid) throws ChainException {
+        while (true) {
+            pageId.pid = rid.pageno.pid;
+            PageLatch.shared(pageId);
+            try {
+                BufferPool.pinPage(pageId, page, false);
+                pinned = true;
+
+                page.checkRID(rid);
+                if (!page.isForwarded(rid.slotno)) {
+                    bind(page, rid.slotno, rid, pageId);
+                    return;
+                }
+                page.getLinkedRID(rid.slotno, this.rid);
+            } finally {
+                PageLatch.releaseShared(pageId);
+            }
+
+            pinned = false;
+            BufferPool.unpinPage(pageId, false);
+
+            pageId.pid = this.rid.pageno.pid;
+            int slotno = this.rid.slotno;
+            PageLatch.shared(pageId);
+            try {
+                BufferPool.pinPage(pageId, page, false);
+                pinned = true;
+
+                if (page.isMovedFrom(slotno, rid)) {
+                    bind(page, slotno, rid, pageId);
+                    return;
+                }
+            } finally {
+                PageLatch.releaseShared(pageId);
+            }
+
+            pinned = false;
+            BufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    /**
+     * Points the view at the record in the given slot of a page that the
+     * caller keeps pinned, or copies it into the view's own buffer if it's
+     * large; rid is the id the record is known by. latchId is the id of the
+     * page, whose shared latch the caller holds, or null if the page is the
+     * caller's own copy, which no one else changes.
+     */
+    void bind(HFPage hfPage, int slotno, RID rid, PageId latchId) throws ChainException {
+        source = hfPage;
+        this.slotno = slotno;
+        this.rid.pageno.pid = rid.pageno.pid;
+        this.rid.slotno = rid.slotno;
+        if (latchId != null) {
+            pageId.pid = latchId.pid;
+        }
+        fill();
+        watched = latchId != null && data != large;
+        stamp = watched ? PageLatch.optimistic(pageId) : 0;
+    }
+
+    /**
+     * Points the view at the record in the source slot, copying it into the
+     * view's own buffer if it's large.
+     */
+    private void fill() throws ChainException {
+        HFPage hfPage = source;
+        if (hfPage.isLarge(slotno)) {
+            length = hfPage.getLargeLength(slotno);
+            if (large == null || large.length < length) {
+                large = new byte[length];
+            }
+            OverflowChain.read(hfPage.getOverflowPage(slotno), ByteBuffer.wrap(large, 0, length));
+            offset = 0;
+            data = large;
+        } else {
+            length = hfPage.getSlotLength(slotno);
+            offset = hfPage.getSlotOffset(slotno);
+            data = hfPage.getData();
+        }
+    }
+
+    /**
+     * Points the view at a copy of a record the caller has made, such as the
+     * version of it a snapshot sees; rid is the id the record is known by.
+     */
+    void bind(byte[] record, RID rid) {
+        source = null;
+        watched = false;
+        length = record.length;
+        offset = 0;
+        data = record;
+        this.rid.pageno.pid = rid.pageno.pid;
+        this.rid.slotno = rid.slotno;
+    }
+
+    /**
+     * Returns true if what was just read from the view is whole. Otherwise
+     * the record is re-read from its page under the page's shared latch, so
+     * the caller can read it again.
+     *
+     * @throws ConcurrentModificationException if the record is no longer in
+     * its slot
+     */
+    private boolean settled() {
+        if (!watched || PageLatch.validate(pageId, stamp)) {
+            return true;
+        }
+
+        PageLatch.shared(pageId);
+        try {
+            boolean home = rid.pageno.pid == pageId.pid && rid.slotno == slotno;
+            if (home ? slotno >= source.getSlotCount() || source.getSlotLength(slotno) == -1
+                    || source.isForwarded(slotno) || source.isMoved(slotno) : !source.isMovedFrom(slotno, rid)) {
+                data = null;
+                watched = false;
+                throw new ConcurrentModificationException("TupleView: Record " + rid.pageno.pid + "/" + rid.slotno
+                        + " was deleted or moved while in view");
+            }
+            fill();
+            watched = data != large;
+            stamp = PageLatch.optimistic(pageId);
+        } catch (ChainException e) {
+            data = null;
+            watched = false;
+            throw new IllegalStateException("TupleView: Failed to re-read the record", e);
+        } finally {
+            PageLatch.releaseShared(pageId);
+        }
+        return false;
+    }
+
+    private void checkValid() {
+        if (data == null) {
+            throw new IllegalStateException("TupleView does not refer to a record");
+        }
+    }
+
+    private void checkRange(int pos, int size) {
+        checkValid();
+        if (pos < 0 || pos + size > length) {
+            throw new IndexOutOfBoundsException("Position " + pos + " is outside the record");
+        }
+    }
+}
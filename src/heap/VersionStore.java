@@ -0,0 +1,189 @@
+package heap;
+
+import global.*;
+
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The earlier versions of a heap file's records that its open snapshots may
+ * still need. Each change to the file takes a stamp from the file's clock
+ * while it holds the exclusive latches of the pages it touches, and a
+ * snapshot is stamped with the clock when it's taken, so a change belongs
+ * to a snapshot's view if and only if its stamp is no later. While any
+ * snapshot is open, a change to a record first keeps the version it
+ * replaces, stamped with the change, in a chain under the record's RID,
+ * newest first; an insert keeps a null version, as the record didn't exist
+ * before. A record whose newest kept version is later than a snapshot has
+ * changed since it was taken, and the snapshot reads it from the chain
+ * instead of from its page.
+ *
+ * A record's chain is only changed under the exclusive latch of the page its
+ * RID names, and of the page it has moved to if it has, so a reader holding
+ * the shared latch of either page sees the chain agree with the page.
+ * Versions older than every open snapshot are dropped by vacuum, which runs
+ * whenever a snapshot is closed; with none open, changes keep nothing.
+ */
+final class VersionStore {
+
+    /**
+     * A version of a record, replaced by the change stamped end; data is
+     * null if the record didn't exist before that change.
+     */
+    static final class Version {
+        final long end;
+        final byte[] data;
+        volatile Version older;
+
+        Version(long end, byte[] data, Version older) {
+            this.end = end;
+            this.data = data;
+            this.older = older;
+        }
+    }
+
+    private final AtomicLong clock;
+    private final Set<Snapshot> snapshots;
+    private final ConcurrentSkipListMap<Long, Version> versions;
+
+    VersionStore() {
+        this.clock = new AtomicLong();
+        this.snapshots = ConcurrentHashMap.newKeySet();
+        this.versions = new ConcurrentSkipListMap<>();
+    }
+
+    private static long key(int pid, int slotno) {
+        return ((long)pid << 32) | slotno;
+    }
+
+    /**
+     * Takes a snapshot of the file as it is now. The snapshot is registered
+     * before it reads the clock, so any change stamped later sees it open
+     * and keeps the version it replaces.
+     */
+    Snapshot open() {
+        Snapshot snapshot = new Snapshot(this);
+        snapshots.add(snapshot);
+        snapshot.asOf = clock.get();
+        return snapshot;
+    }
+
+    /**
+     * Closes the given snapshot and drops the versions no open snapshot can
+     * see any more.
+     */
+    void close(Snapshot snapshot) {
+        if (snapshots.remove(snapshot)) {
+            vacuum();
+        }
+    }
+
+    /**
+     * Returns true if the given snapshot is one of this file's and is still
+     * open.
+     */
+    boolean isOpen(Snapshot snapshot) {
+        return snapshots.contains(snapshot);
+    }
+
+    /**
+     * Takes the stamp for a change that the caller, holding the latches of
+     * the pages it touches, is about to make. Returns -1 if no snapshot is
+     * open, in which case the change needn't keep anything.
+     */
+    long stamp() {
+        long stamp = clock.incrementAndGet();
+        return snapshots.isEmpty() ? -1 : stamp;
+    }
+
+    /**
+     * Keeps the version of the record at rid that the change with the given
+     * stamp replaces; null means the change inserts the record.
+     */
+    void keep(RID rid, byte[] data, long stamp) {
+        versions.compute(key(rid.pageno.pid, rid.slotno), (key, newer) -> new Version(stamp, data, newer));
+    }
+
+    /**
+     * Gets the newest kept version of the record at rid if the record has
+     * changed since the given snapshot was taken, or null if it hasn't.
+     */
+    Version changedSince(RID rid, Snapshot snapshot) {
+        Version version = versions.get(key(rid.pageno.pid, rid.slotno));
+        return version != null && version.end > snapshot.asOf ? version : null;
+    }
+
+    /**
+     * Gets the kept versions of the records whose RIDs name the given page,
+     * keyed as made by key, so the slot is the low half of each key.
+     */
+    NavigableMap<Long, Version> onPage(PageId pageId) {
+        return versions.subMap(key(pageId.pid, 0), true, key(pageId.pid, Integer.MAX_VALUE), true);
+    }
+
+    /**
+     * Gets a copy of the bytes the given snapshot sees for a record that has
+     * changed since it was taken, given the record's newest kept version, or
+     * null if the record didn't exist then.
+     */
+    static byte[] visible(Version version, Snapshot snapshot) {
+        Version older;
+        while ((older = version.older) != null && older.end > snapshot.asOf) {
+            version = older;
+        }
+        return version.data == null ? null : version.data.clone();
+    }
+
+    /**
+     * Drops the versions no open snapshot can see: those replaced no later
+     * than the oldest snapshot. The clock is read before the snapshots, so a
+     * snapshot taken meanwhile is no older than what's dropped; one that
+     * hasn't read the clock yet counts as taken at 0, keeping everything.
+     */
+    void vacuum() {
+        long horizon = clock.get();
+        for (Snapshot snapshot : snapshots) {
+            horizon = Math.min(horizon, snapshot.asOf);
+        }
+
+        long oldest = horizon;
+        for (Long key : versions.keySet()) {
+            versions.computeIfPresent(key, (k, version) -> prune(version, oldest));
+        }
+    }
+
+    /**
+     * Cuts off the versions of a chain replaced no later than the given
+     * stamp, returning what's left of it or null if nothing is.
+     */
+    private static Version prune(Version newest, long horizon) {
+        if (newest.end <= horizon) {
+            return null;
+        }
+
+        for (Version version = newest; version.older != null; version = version.older) {
+            if (version.older.end <= horizon) {
+                version.older = null;
+                break;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Gets the number of records with kept versions.
+     */
+    int size() {
+        return versions.size();
+    }
+
+    /**
+     * Drops every kept version, as when the file is deleted.
+     */
+    void clear() {
+        versions.clear();
+    }
+}
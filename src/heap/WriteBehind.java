@@ -0,0 +1,122 @@
+package heap;
+
+import global.*;
+
+import java.util.BitSet;
+
+/**
+ * Writes the heap layer's dirty pages back to disk on a background thread, so
+ * a page is usually clean by the time the buffer manager evicts it and the
+ * thread that needs the frame doesn't wait on a write. BufferPool reports
+ * each page unpinned dirty; once maxDirty of them have built up, or
+ * FLUSH_MILLIS after the first one, the writer flushes them in page id order,
+ * so runs of adjacent pages go out as sequential writes. It holds the buffer
+ * manager's lock for at most BATCH_PAGES flushes at a time, so a foreground
+ * pin waits for one batch at most. A page still pinned when its turn comes
+ * isn't written, since a change to it may be under way; it's written after
+ * it's next unpinned dirty. A page that can't be flushed (because it has
+ * since been freed, say) is skipped.
+ */
+class WriteBehind {
+
+    static final int BATCH_PAGES = 16;
+    static final long FLUSH_MILLIS = 100;
+
+    private final int maxDirty;
+    private final BitSet dirty;
+    private int dirtyCnt;
+    private boolean stopped;
+    private final Thread thread;
+
+    /**
+     * Starts a writer that flushes once the given number of pages are dirty.
+     *
+     * @throws IllegalArgumentException if maxDirty is less than 1
+     */
+    WriteBehind(int maxDirty) {
+        if (maxDirty < 1) {
+            throw new IllegalArgumentException("Invalid dirty page limit");
+        }
+
+        this.maxDirty = maxDirty;
+        this.dirty = new BitSet();
+        this.thread = new Thread(this::run, "heap-writeback");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Notes that the given page was unpinned dirty.
+     */
+    synchronized void pageDirtied(PageId pageId) {
+        if (!dirty.get(pageId.pid)) {
+            dirty.set(pageId.pid);
+            if (++dirtyCnt == 1 || dirtyCnt == maxDirty) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Forgets the given page, which is being freed.
+     */
+    synchronized void pageFreed(PageId pageId) {
+        if (dirty.get(pageId.pid)) {
+            dirty.clear(pageId.pid);
+            dirtyCnt--;
+        }
+    }
+
+    /**
+     * Flushes the pages still waiting and stops the writer, returning once
+     * it has finished.
+     */
+    void stop() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        thread.join();
+    }
+
+    private void run() {
+        while (true) {
+            int[] pids;
+            synchronized (this) {
+                try {
+                    awaitBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (dirtyCnt == 0) {
+                    return;
+                }
+
+                pids = dirty.stream().toArray();
+                dirty.clear();
+                dirtyCnt = 0;
+            }
+
+            for (int i = 0; i < pids.length; i += BATCH_PAGES) {
+                BufferPool.flushPages(pids, i, Math.min(i + BATCH_PAGES, pids.length));
+            }
+        }
+    }
+
+    /**
+     * Waits until there are pages to flush: maxDirty of them, any at all once
+     * the first has waited FLUSH_MILLIS, or whatever is left when the writer
+     * is stopped.
+     */
+    private void awaitBatch() throws InterruptedException {
+        while (!stopped && dirtyCnt == 0) {
+            wait();
+        }
+
+        long deadline = System.currentTimeMillis() + FLUSH_MILLIS;
+        long left;
+        while (!stopped && dirtyCnt < maxDirty && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+    }
+}
@@ -3,14 +3,36 @@ package tests;
 import global.Convert;
 import global.GlobalConst;
 import global.Minibase;
+import global.Page;
+import global.PageId;
 import global.RID;
 import heap.HeapFile;
+import heap.HeapRecord;
 import heap.HeapScan;
+import heap.ScanSpec;
+import heap.Snapshot;
 import heap.Tuple;
+import heap.TupleView;
 
+import java.io.File;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
+
+import bufmgr.BufMgr;
 import chainexception.ChainException;
+import diskmgr.DiskMgr;
 
 /** Note that in JAVA, methods can't be overridden to be more private.
     Therefore, the declaration of all private functions are now declared
@@ -610,7 +632,125 @@ class HFDriver extends TestDriver implements GlobalConst
 	//deal with variable size records.  it's probably easier to re-write
 	//one instead of using the ones from C++
 	protected boolean test5 () {
-		return true;
+
+		System.out.println ("\n  Test 5: Test variable-length updates\n");
+		boolean status = OK;
+		RID [] rids = new RID [choice];
+		HeapFile f = null;
+
+		System.out.println ("  - Create a heap file\n");
+		try {
+			f = new HeapFile("file_5");
+		}
+		catch (Exception e) {
+			status = FAIL;
+			System.err.println ("*** Could not create heap file\n");
+			e.printStackTrace();
+		}
+
+		for (int i = 0; i < choice && status == OK; i++) {
+			byte [] record = new byte [reclen];
+
+			try {
+				Convert.setIntValue (i, 0, record);
+				rids[i] = f.insertRecord(record);
+			}
+			catch (Exception e) {
+				status = FAIL;
+				System.err.println ("*** Error inserting record " + i + "\n");
+				e.printStackTrace();
+			}
+		}
+
+		// Growing every record makes most of them move to other pages, and
+		// shrinking them again lets them move back; their RIDs stay the same
+		int [] lengths = { 300, 8 };
+		for (int k = 0; k < lengths.length && status == OK; k++) {
+			System.out.println ("  - Change every record to length " + lengths[k] + "\n");
+
+			for (int i = 0; i < choice && status == OK; i++) {
+				byte [] record = new byte [lengths[k]];
+
+				try {
+					Convert.setIntValue (i, 0, record);
+					status = f.updateRecord(rids[i], new Tuple(record, 0, record.length));
+				}
+				catch (Exception e) {
+					status = FAIL;
+					e.printStackTrace();
+				}
+
+				if (status == FAIL) {
+					System.err.println ("*** Error updating record " + i + "\n");
+				}
+			}
+
+			// Every record must be scanned exactly once, under its own RID
+			boolean [] seen = new boolean [choice];
+			int count = 0;
+			HeapScan scan = null;
+
+			try {
+				scan = f.openScan();
+				RID rid = new RID();
+				Tuple tuple;
+
+				while (status == OK && (tuple = scan.getNext(rid)) != null) {
+					int i = Convert.getIntValue (0, tuple.data);
+					if (i < 0 || i >= choice || seen[i] || !rid.equals(rids[i])
+							|| tuple.getLength() != lengths[k]) {
+						System.err.println ("*** Record " + i + " differs from what was updated\n");
+						status = FAIL;
+					}
+					else {
+						seen[i] = true;
+						count++;
+					}
+				}
+				scan.close();
+			}
+			catch (Exception e) {
+				status = FAIL;
+				e.printStackTrace();
+			}
+
+			if (status == OK && count != choice) {
+				System.err.println ("*** Scanned " + count + " records, not " + choice + "\n");
+				status = FAIL;
+			}
+
+			if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+				System.err.println ("*** Updating records left a page pinned\n");
+				status = FAIL;
+			}
+		}
+
+		if ( status == OK ) {
+			System.out.println ("  - Delete the records\n");
+
+			for (int i = 0; i < choice && status == OK; i++) {
+				try {
+					status = f.deleteRecord(rids[i]);
+				}
+				catch (Exception e) {
+					status = FAIL;
+					e.printStackTrace();
+				}
+
+				if (status == FAIL) {
+					System.err.println ("*** Error deleting record " + i + "\n");
+				}
+			}
+
+			if (status == OK && (f.getRecCnt() != 0 || f.getLiveBytes() != 0)) {
+				System.err.println ("*** File still reports " + f.getRecCnt() + " records\n");
+				status = FAIL;
+			}
+		}
+
+		if ( status == OK )
+			System.out.println ("  Test 5 completed successfully.\n");
+		return status;
 	}
 
 
@@ -665,12 +805,10 @@ class HFDriver extends TestDriver implements GlobalConst
 			}
 		}
 
-		//The following is to test whether tinkering with the size of
-		//the tuples will cause any problem.  
+		//Changing the size of a record keeps its RID; the record is
+		//moved to another page if it no longer fits on its own.
 
 		if ( status == OK ) {
-			int len;
-			DummyRecord rec = null;
 			Tuple tuple = new Tuple();
 
 			try {
@@ -687,102 +825,80 @@ class HFDriver extends TestDriver implements GlobalConst
 				System.err.println ( "*** Error reading first record\n" );
 			}
 
-			if (status == OK) {
-				try {
-					rec = new DummyRecord(tuple);
-				}
-				catch (Exception e) {
-					System.err.println (""+e);
-					status = FAIL;
-				}
-				len = tuple.getLength();
-				Tuple newTuple = null;
-				try {
-					newTuple = new Tuple(rec.toByteArray(), 0, len-1);
-				}
-				catch (Exception e) {
-					System.err.println (""+e);
-					e.printStackTrace();
-				}
+			int recCnt = f.getRecCnt();
+			int [] lengths = { tuple.getLength() - 1, tuple.getLength() + 1, 400 };
+			for (int i = 0; i < lengths.length && status == OK; i++) {
+				byte [] record = new byte [lengths[i]];
+				record[lengths[i] - 1] = (byte) (i + 1);
+
 				try {
-					status = f.updateRecord( rid, newTuple );
-				}
-				catch (ChainException e) { 
-					status = checkException (e, "heap.InvalidUpdateException");
-					if (status == FAIL) {
-						System.err.println( "**** Shortening a record" );
-						System.out.println ("  --> Failed as expected \n");
+					status = f.updateRecord( rid, new Tuple(record, 0, record.length) );
+					Tuple newTuple = f.getRecord( rid );
+					if (status == OK && (newTuple.getLength() != lengths[i]
+							|| newTuple.data[lengths[i] - 1] != (byte) (i + 1))) {
+						status = FAIL;
 					}
 				}
 				catch (Exception e) {
+					status = FAIL;
 					e.printStackTrace();
 				}
 
-				if (status == OK) { 
-					status = FAIL; 
-					System.err.println ("######The expected exception was not thrown\n");
-				}
-				else { 
-					status = OK; 
+				if (status == FAIL) {
+					System.err.println ("*** Error changing a record to length " + lengths[i] + "\n");
 				}
 			}
 
-			if (status == OK) {
-				try {
-					rec = new DummyRecord(tuple);
-				}
-				catch (Exception e) {
-					System.err.println (""+e);
-					e.printStackTrace();
-				}
+			try {
+				scan.close();
+			}
+			catch (Exception e) {
+				status = FAIL;
+				e.printStackTrace();
+			}
 
-				len = tuple.getLength();
-				Tuple newTuple = null;
-				try {
-					newTuple = new Tuple(rec.toByteArray(), 0, len+1);
-				}
-				catch (Exception e) {
-					System.err.println( ""+e );
-					e.printStackTrace();
-				}
-				try {
-					status = f.updateRecord( rid, newTuple );
-				}
-				catch (ChainException e) {
-					status = checkException(e, "heap.InvalidUpdateException");
-					if (status == FAIL) {
-						System.err.println( "**** Lengthening a record" );
-						System.out.println ("  --> Failed as expected \n");
-					}
-				}
-				catch (Exception e) {
-					e.printStackTrace();
-				}
+			if (status == OK && f.getRecCnt() != recCnt) {
+				System.err.println ("*** File reports " + f.getRecCnt() + " records, not " + recCnt + "\n");
+				status = FAIL;
+			}
 
-				if (status == OK) { 
-					status = FAIL; 
-					System.err.println ("The expected exception was not thrown\n");
-				}
-				else { 
-					status = OK; 
-				}
+			if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+				System.err.println ("*** Updating a record left a page pinned\n");
+				status = FAIL;
 			}
 		}
 
 		scan = null;
 
 		if ( status == OK ) {
-			System.out.println ("  - Try to insert a record that's too long\n");
+			System.out.println ("  - Insert a record that's larger than a page\n");
 			byte [] record = new byte [MAX_TUPSIZE+4];
+			for (int i = 0; i < record.length; i++) {
+				record[i] = (byte) i;
+			}
 			try {
 				rid = f.insertRecord( record );
-			}
-			catch (ChainException e) {
-                System.err.println( "**** Inserting a too-long record" );
-                System.out.println ("  --> Failed as expected \n");
+				Tuple tuple = f.getRecord( rid );
+				if ( tuple.getLength() != record.length
+						|| !Arrays.equals( Arrays.copyOf( tuple.data, tuple.getLength() ), record ) ) {
+					System.err.println( "*** Large record read back incorrectly" );
+					status = FAIL;
+				}
+				else if ( !f.deleteRecord( rid ) ) {
+					System.err.println( "*** Could not delete large record" );
+					status = FAIL;
+				}
 			}
 			catch (Exception e) {
+				System.err.println( "*** Error inserting a large record" );
 				e.printStackTrace();
+				status = FAIL;
+			}
+
+			if ( status == OK && Minibase.BufferManager.getNumUnpinned()
+					!= Minibase.BufferManager.getNumBuffers() ) {
+				System.err.println( "*** Large record left a page pinned" );
+				status = FAIL;
 			}
 		}
 
@@ -853,6 +969,2274 @@ class HFDriver extends TestDriver implements GlobalConst
 		return status;
 	}
 
+	protected boolean test7 () {
+		System.out.println ("\n  Test 7: Insert, update, delete and scan from several threads at once\n");
+		final int threads = 4;
+		final HeapFile f;
+
+		try {
+			f = new HeapFile("file_7");
+		}
+		catch (Exception e) {
+			System.err.println ("*** Could not create heap file\n");
+			e.printStackTrace();
+			return FAIL;
+		}
+
+		// Each writer inserts choice records, doubles every other one in
+		// length and deletes every fourth, while a scan checks every record
+		// it sees is whole
+		final RID[][] rids = new RID[threads][choice];
+		final boolean[] failed = new boolean[1];
+		Thread[] writers = new Thread[threads];
+
+		System.out.println ("  - Run " + threads + " writers and a scan\n");
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			writers[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < choice; i++) {
+						rids[id][i] = f.insertRecord(concurrentRecord(id, i, reclen));
+					}
+					for (int i = 0; i < choice; i += 2) {
+						byte[] rec = concurrentRecord(id, i, 2 * reclen);
+						f.updateRecord(rids[id][i], new Tuple(rec, 0, rec.length));
+					}
+					for (int i = 0; i < choice; i += 4) {
+						f.deleteRecord(rids[id][i]);
+					}
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			writers[t].start();
+		}
+
+		Thread scanner = new Thread(() -> {
+			try {
+				for (int n = 0; n < 10; n++) {
+					HeapScan scan = f.openScan();
+					while (scan.hasNext()) {
+						byte[] rec = scan.next().getTuple().data;
+						if (!Arrays.equals(rec, concurrentRecord(rec[0], rec[1] & 0xFF, rec.length))) {
+							failed[0] = true;
+							System.err.println ("*** Scan returned a torn record\n");
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				failed[0] = true;
+				e.printStackTrace();
+			}
+		});
+		scanner.start();
+
+		try {
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			scanner.join();
+		}
+		catch (InterruptedException e) {
+			failed[0] = true;
+		}
+
+		boolean status = !failed[0];
+		if (status == OK) {
+			System.out.println ("  - Check every writer's records\n");
+		}
+
+		for (int t = 0; t < threads && status == OK; t++) {
+			for (int i = 0; i < choice && status == OK; i++) {
+				if (i % 4 == 0) {
+					continue;
+				}
+				byte[] expect = concurrentRecord(t, i, i % 2 == 0 ? 2 * reclen : reclen);
+				try {
+					if (!Arrays.equals(f.getRecord(rids[t][i]).data, expect)) {
+						System.err.println ("*** Record " + i + " of writer " + t + " differs\n");
+						status = FAIL;
+					}
+				}
+				catch (Exception e) {
+					status = FAIL;
+					e.printStackTrace();
+				}
+			}
+		}
+
+		int expectCnt = threads * (choice - (choice + 3) / 4);
+		if (status == OK && f.getRecCnt() != expectCnt) {
+			System.err.println ("*** File reports " + f.getRecCnt() + " records, not " + expectCnt + "\n");
+			status = FAIL;
+		}
+
+		if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+			System.err.println ("*** The threads left pages pinned\n");
+			status = FAIL;
+		}
+
+		try {
+			f.deleteFile();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		if (status == OK)
+			System.out.println ("  Test 7 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test8 () {
+		System.out.println ("\n  Test 8: Scan and read a snapshot while the file changes\n");
+		HeapFile f;
+		RID[] rids = new RID[choice];
+		RID[] added = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_8");
+		}
+		catch (Exception e) {
+			System.err.println ("*** Could not create heap file\n");
+			e.printStackTrace();
+			return FAIL;
+		}
+
+		Snapshot snapshot = null;
+		try {
+			System.out.println ("  - Insert " + choice + " records and take a snapshot\n");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(8, i, reclen));
+			}
+			snapshot = f.openSnapshot();
+
+			System.out.println ("  - Double every other record, delete every fourth and insert " + choice + " more\n");
+			for (int i = 0; i < choice; i += 2) {
+				byte[] rec = concurrentRecord(9, i, 2 * reclen);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+			for (int i = 0; i < choice; i += 4) {
+				f.deleteRecord(rids[i]);
+			}
+			for (int i = 0; i < choice; i++) {
+				added[i] = f.insertRecord(concurrentRecord(10, i, reclen));
+			}
+
+			System.out.println ("  - Scan the snapshot\n");
+			int count = 0;
+			HeapScan scan = f.openScan(snapshot);
+			while (scan.hasNext() && status == OK) {
+				HeapRecord record = scan.next();
+				int i = record.getTuple().data[1] & 0xFF;
+				RID rid = record.getRID();
+				if (!Arrays.equals(record.getTuple().data, concurrentRecord(8, i, reclen))
+						|| rid.pageno.pid != rids[i].pageno.pid || rid.slotno != rids[i].slotno) {
+					System.err.println ("*** The snapshot scan returned a changed record\n");
+					status = FAIL;
+				}
+				count++;
+			}
+			scan.close();
+
+			if (status == OK && count != choice) {
+				System.err.println ("*** The snapshot scan returned " + count + " records, not " + choice + "\n");
+				status = FAIL;
+			}
+
+			if (status == OK) {
+				System.out.println ("  - Read deleted and new records through the snapshot\n");
+				if (!Arrays.equals(f.getRecord(rids[0], snapshot).data, concurrentRecord(8, 0, reclen))) {
+					System.err.println ("*** The snapshot didn't see a deleted record as it was\n");
+					status = FAIL;
+				}
+				// A new record may reuse a deleted one's slot, and so its RID;
+				// pick one that doesn't
+				RID fresh = null;
+				for (int i = 0; i < choice && fresh == null; i++) {
+					fresh = added[i];
+					for (RID rid : rids) {
+						if (rid.pageno.pid == fresh.pageno.pid && rid.slotno == fresh.slotno) {
+							fresh = null;
+							break;
+						}
+					}
+				}
+				boolean hidden = false;
+				try {
+					f.getRecord(fresh, snapshot);
+				}
+				catch (ChainException e) {
+					hidden = true;
+				}
+				if (!hidden) {
+					System.err.println ("*** The snapshot saw a record inserted after it\n");
+					status = FAIL;
+				}
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+		finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+
+		int expectCnt = 2 * choice - (choice + 3) / 4;
+		if (status == OK && f.getRecCnt() != expectCnt) {
+			System.err.println ("*** File reports " + f.getRecCnt() + " records, not " + expectCnt + "\n");
+			status = FAIL;
+		}
+
+		if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+			System.err.println ("*** The snapshot left pages pinned\n");
+			status = FAIL;
+		}
+
+		try {
+			f.deleteFile();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		if (status == OK)
+			System.out.println ("  Test 8 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test9 () {
+		System.out.println ("\n  Test 9: Log changes to a write-ahead log\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			HeapFile.startLogging(logpath);
+			f = new HeapFile("file_9");
+
+			System.out.println ("  - Insert " + choice + " records, double every other one and delete every fourth\n");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(11, i, reclen));
+			}
+			for (int i = 0; i < choice; i += 2) {
+				byte[] rec = concurrentRecord(12, i, 2 * reclen);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+			for (int i = 0; i < choice; i += 4) {
+				f.deleteRecord(rids[i]);
+			}
+
+			if (new File(logpath).length() == 0) {
+				System.err.println ("*** Nothing was written to the log\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Read the records back\n");
+			for (int i = 1; i < choice && status == OK; i++) {
+				if (i % 4 == 0) {
+					continue;
+				}
+				byte[] expect = i % 2 == 0 ? concurrentRecord(12, i, 2 * reclen) : concurrentRecord(11, i, reclen);
+				if (!Arrays.equals(f.getRecord(rids[i]).data, expect)) {
+					System.err.println ("*** Record " + i + " doesn't read back as written\n");
+					status = FAIL;
+				}
+			}
+
+			System.out.println ("  - Stop logging\n");
+			HeapFile.stopLogging();
+			if (new File(logpath).length() != 0) {
+				System.err.println ("*** The log wasn't emptied when logging stopped\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+			System.err.println ("*** The log left pages pinned\n");
+			status = FAIL;
+		}
+
+		try {
+			if (f != null) {
+				f.deleteFile();
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		if (status == OK)
+			System.out.println ("  Test 9 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test10 () {
+		System.out.println ("\n  Test 10: Reject a RID one past the last slot of a page\n");
+		HeapFile f = null;
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_10");
+			RID[] rids = new RID[3];
+			for (int i = 0; i < rids.length; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(13, i, reclen));
+			}
+			RID past = new RID(rids[0].pageno, rids[2].slotno + 1);
+
+			System.out.println ("  - Read and delete the RID past the last slot\n");
+			boolean rejected = false;
+			try {
+				f.getRecord(past);
+			}
+			catch (Exception e) {
+				rejected = true;
+			}
+			if (!rejected) {
+				System.err.println ("*** getRecord accepted a slot past the end of the page\n");
+				status = FAIL;
+			}
+			if (status == OK && f.deleteRecord(past)) {
+				System.err.println ("*** deleteRecord deleted a slot past the end of the page\n");
+				status = FAIL;
+			}
+			if (status == OK && f.getRecCnt() != rids.length) {
+				System.err.println ("*** File reports " + f.getRecCnt() + " records, not " + rids.length + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Insert two more records\n");
+			if (status == OK) {
+				RID a = f.insertRecord(concurrentRecord(13, 3, reclen));
+				RID b = f.insertRecord(concurrentRecord(13, 4, reclen));
+				if (a.pageno.pid == b.pageno.pid && a.slotno == b.slotno) {
+					System.err.println ("*** Two inserts returned the same RID\n");
+					status = FAIL;
+				}
+				else if (!Arrays.equals(f.getRecord(a).data, concurrentRecord(13, 3, reclen))) {
+					System.err.println ("*** A record was overwritten by a later insert\n");
+					status = FAIL;
+				}
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 10 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test11 () {
+		System.out.println ("\n  Test 11: Update and delete moved records after reopening the file\n");
+		int count = 3000;
+		int length = 100;
+		HeapFile f = null;
+		RID[] rids = new RID[count];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_11");
+
+			System.out.println ("  - Insert " + count + " records, filling more than one directory page\n");
+			for (int i = 0; i < count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(14, i, length));
+			}
+
+			System.out.println ("  - Grow the first two records, moving them off their full page\n");
+			for (int i = 0; i < 2; i++) {
+				byte[] rec = concurrentRecord(15, i, 6 * length);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+
+			System.out.println ("  - Reopen the file, delete the first record and update the second\n");
+			f = new HeapFile("file_11");
+			if (!f.deleteRecord(rids[0])) {
+				System.err.println ("*** Could not delete a moved record\n");
+				status = FAIL;
+			}
+			byte[] rec = concurrentRecord(16, 1, 7 * length);
+			if (status == OK && !f.updateRecord(rids[1], new Tuple(rec, 0, rec.length))) {
+				System.err.println ("*** Could not update a moved record\n");
+				status = FAIL;
+			}
+			if (status == OK && !Arrays.equals(f.getRecord(rids[1]).data, rec)) {
+				System.err.println ("*** The moved record doesn't read back as updated\n");
+				status = FAIL;
+			}
+			if (status == OK && f.getRecCnt() != count - 1) {
+				System.err.println ("*** File reports " + f.getRecCnt() + " records, not " + (count - 1) + "\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 11 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test12 () {
+		System.out.println ("\n  Test 12: Give up on a large record whose stream fails\n");
+		HeapFile f = null;
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_12");
+			int before = f.getPageCnt();
+
+			System.out.println ("  - Insert a record from a stream that fails after three pages' worth\n");
+			InputStream failing = new InputStream() {
+				private int left = 3 * PAGE_SIZE;
+
+				public int read() throws IOException {
+					if (left == 0) {
+						throw new IOException("stream failed");
+					}
+					left--;
+					return 7;
+				}
+			};
+			boolean rejected = false;
+			try {
+				f.insertRecord(failing);
+			}
+			catch (ChainException e) {
+				rejected = true;
+			}
+			if (!rejected) {
+				System.err.println ("*** The failing stream was stored\n");
+				status = FAIL;
+			}
+			if (status == OK && (f.getRecCnt() != 0 || f.getPageCnt() != before)) {
+				System.err.println ("*** The failed insert changed the file\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Insert a large record after it\n");
+			byte[] rec = concurrentRecord(17, 0, 3 * PAGE_SIZE);
+			RID rid = f.insertRecord(rec);
+			if (status == OK && !Arrays.equals(f.getRecord(rid).data, rec)) {
+				System.err.println ("*** The large record doesn't read back as written\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 12 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test13 () {
+		System.out.println ("\n  Test 13: Stream the records of a file\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_13");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(18, i, reclen));
+			}
+
+			System.out.println ("  - Stop a stream at its first record\n");
+			HeapRecord first = f.stream().findFirst().orElse(null);
+			if (first == null || !Arrays.equals(first.getTuple().data, concurrentRecord(18, 0, reclen))) {
+				System.err.println ("*** findFirst didn't return the first record\n");
+				status = FAIL;
+			}
+			if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+				System.err.println ("*** A stream stopped early left pages pinned\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Count a stream after deleting records from under it\n");
+			Spliterator<HeapRecord> records = f.spliterator();
+			for (int i = 0; i < choice; i += 2) {
+				f.deleteRecord(rids[i]);
+			}
+			long count = StreamSupport.stream(records, false).count();
+			if (status == OK && count != choice / 2) {
+				System.err.println ("*** The stream counted " + count + " records, not " + choice / 2 + "\n");
+				status = FAIL;
+			}
+			long sum = f.stream().parallel().mapToLong(record -> record.getTuple().data[1] & 0xFF).sum();
+			if (status == OK && sum != (long)(choice / 2) * (choice / 2)) {
+				System.err.println ("*** A parallel stream didn't see each record once\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 13 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test14 () {
+		System.out.println ("\n  Test 14: Redo the log after a crash\n");
+		String crashpath = logpath + "-crash";
+		HeapFile f = null;
+		RID[] rids = new RID[2 * choice];
+		byte[][] recs = new byte[2 * choice][];
+		boolean status = OK;
+
+		try {
+			HeapFile.startLogging(logpath);
+			f = new HeapFile("file_14");
+
+			System.out.println ("  - Insert " + choice + " records one at a time, some larger than a page, and " + choice + " at once\n");
+			for (int i = 0; i < choice; i++) {
+				recs[i] = concurrentRecord(19, i, i % 10 == 0 ? 3 * PAGE_SIZE + i : reclen + i % 20);
+				rids[i] = f.insertRecord(recs[i]);
+			}
+			List<byte[]> batch = new ArrayList<>();
+			for (int i = choice; i < 2 * choice; i++) {
+				recs[i] = concurrentRecord(20, i, reclen + i % 20);
+				batch.add(recs[i]);
+			}
+			System.arraycopy(f.insertRecords(batch), 0, rids, choice, choice);
+
+			System.out.println ("  - Update every third record, some to or from more than a page, and delete every seventh\n");
+			for (int i = 0; i < 2 * choice; i += 3) {
+				recs[i] = concurrentRecord(21, i, i % 10 == 5 ? 2 * PAGE_SIZE : i % 2 == 0 ? reclen / 2 : 3 * reclen);
+				f.updateRecord(rids[i], new Tuple(recs[i], 0, recs[i].length));
+			}
+			for (int i = 0; i < 2 * choice; i += 7) {
+				f.deleteRecord(rids[i]);
+				recs[i] = null;
+			}
+
+			System.out.println ("  - Update record 1 until the log grows past 4 MB and is emptied by a checkpoint\n");
+			long longest = 0;
+			boolean emptied = false;
+			for (int n = 0; n < 12000 && !emptied; n++) {
+				recs[1] = concurrentRecord(22 + n % 2, 1, 900 + n % 50);
+				f.updateRecord(rids[1], new Tuple(recs[1], 0, recs[1].length));
+				long length = new File(logpath).length();
+				emptied = length < longest;
+				longest = Math.max(longest, length);
+			}
+			if (!emptied) {
+				System.err.println ("*** The log grew to " + longest + " bytes without a checkpoint\n");
+				status = FAIL;
+			}
+
+			int recCnt = f.getRecCnt();
+			int pageCnt = f.getPageCnt();
+			long liveBytes = f.getLiveBytes();
+			long deadBytes = f.getDeadBytes();
+
+			System.out.println ("  - Crash: keep the log, drop the buffer pool, and redo the log\n");
+			Files.copy(Paths.get(logpath), Paths.get(crashpath), StandardCopyOption.REPLACE_EXISTING);
+			Minibase.BufferManager = new BufMgr(BUF_SIZE, LAH_SIZE, "CLOCK");
+			HeapFile.startLogging(crashpath);
+			f = new HeapFile("file_14");
+
+			System.out.println ("  - Read the records and statistics back\n");
+			int count = 0;
+			for (int i = 0; i < 2 * choice && status == OK; i++) {
+				if (recs[i] == null) {
+					continue;
+				}
+				count++;
+				if (!Arrays.equals(f.getRecord(rids[i]).data, recs[i])) {
+					System.err.println ("*** Record " + i + " doesn't read back as written\n");
+					status = FAIL;
+				}
+			}
+			if (status == OK && (f.getRecCnt() != count || recCnt != count)) {
+				System.err.println ("*** The file counts " + f.getRecCnt() + " records, not " + count + "\n");
+				status = FAIL;
+			}
+			if (status == OK && (f.getPageCnt() != pageCnt || f.getLiveBytes() != liveBytes || f.getDeadBytes() != deadBytes)) {
+				System.err.println ("*** The file's statistics didn't survive the crash\n");
+				status = FAIL;
+			}
+
+			HeapFile.stopLogging();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		new File(crashpath).delete();
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 14 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test15 () {
+		System.out.println ("\n  Test 15: Reopen a file whose directory spans several pages\n");
+		int count = 20 * choice;
+		HeapFile f = null;
+		RID[] rids = new RID[count];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_15");
+
+			System.out.println ("  - Insert " + count + " records\n");
+			for (int i = 0; i < count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(22, i, 3 * reclen));
+			}
+			// A directory entry takes 8 bytes at least
+			if (f.getPageCnt() <= PAGE_SIZE / 8) {
+				System.err.println ("*** The file's directory fits on one page\n");
+				status = FAIL;
+			}
+			int pageCnt = f.getPageCnt();
+			long liveBytes = f.getLiveBytes();
+			long deadBytes = f.getDeadBytes();
+
+			System.out.println ("  - Reopen the file, check its statistics, and delete its last record before touching any other\n");
+			f = new HeapFile("file_15");
+			if (status == OK && (f.getRecCnt() != count || f.getPageCnt() != pageCnt
+					|| f.getLiveBytes() != liveBytes || f.getDeadBytes() != deadBytes)) {
+				System.err.println ("*** The file's statistics didn't survive reopening it\n");
+				status = FAIL;
+			}
+			if (status == OK && !f.deleteRecord(rids[count - 1])) {
+				System.err.println ("*** The last record of the reopened file couldn't be deleted\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reopen the file, check its statistics, and scan it\n");
+			f = new HeapFile("file_15");
+			if (status == OK && (f.getRecCnt() != count - 1 || f.getPageCnt() != pageCnt
+					|| f.getLiveBytes() != liveBytes - 3 * reclen)) {
+				System.err.println ("*** The delete's statistics didn't survive reopening the file\n");
+				status = FAIL;
+			}
+			int i = 0;
+			HeapScan scan = f.openScan();
+			while (scan.hasNext() && status == OK) {
+				HeapRecord record = scan.next();
+				RID rid = record.getRID();
+				if (i == count - 1 || !Arrays.equals(record.getTuple().data, concurrentRecord(22, i, 3 * reclen))
+						|| rid.pageno.pid != rids[i].pageno.pid || rid.slotno != rids[i].slotno) {
+					System.err.println ("*** The scan of the reopened file returned record " + i + " wrong\n");
+					status = FAIL;
+				}
+				i++;
+			}
+			scan.close();
+			if (status == OK && i != count - 1) {
+				System.err.println ("*** The scan of the reopened file returned " + i + " records, not " + (count - 1) + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reopen the file and insert a record into its last page\n");
+			f = new HeapFile("file_15");
+			byte[] rec = concurrentRecord(23, 0, 3 * reclen);
+			RID rid = f.insertRecord(rec);
+			if (status == OK && (f.getRecCnt() != count || f.getPageCnt() != pageCnt)) {
+				System.err.println ("*** The reopened file counts " + f.getRecCnt() + " records on " + f.getPageCnt() + " pages after the insert\n");
+				status = FAIL;
+			}
+			if (status == OK && rid.pageno.pid != rids[count - 1].pageno.pid) {
+				System.err.println ("*** The record went to page " + rid.pageno.pid + ", not the last page with room\n");
+				status = FAIL;
+			}
+			if (status == OK && (!Arrays.equals(f.getRecord(rid).data, rec)
+					|| !Arrays.equals(f.getRecord(rids[0]).data, concurrentRecord(22, 0, 3 * reclen)))) {
+				System.err.println ("*** The records don't read back after the insert\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 15 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test16 () {
+		System.out.println ("\n  Test 16: Bulk load records at two fill factors\n");
+		HeapFile f = null;
+		HeapFile g = null;
+		List<byte[]> recs = new ArrayList<>();
+		boolean status = OK;
+
+		for (int i = 0; i < choice; i++) {
+			recs.add(concurrentRecord(24, i, reclen));
+		}
+
+		try {
+			System.out.println ("  - Load " + choice + " records into full pages and into half full ones\n");
+			f = new HeapFile("file_16");
+			g = new HeapFile("file_16b");
+			if (f.bulkLoad(recs.iterator()) != choice || g.bulkLoad(recs.iterator(), 0.5) != choice
+					|| f.getRecCnt() != choice || g.getRecCnt() != choice) {
+				System.err.println ("*** Not every record was loaded\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Scan both files\n");
+			int fullMax = 0;
+			int halfMax = 0;
+			for (HeapFile h : new HeapFile[] { f, g }) {
+				int i = 0;
+				int onPage = 0;
+				int pageMax = 0;
+				int pid = -1;
+				HeapScan scan = h.openScan();
+				while (scan.hasNext() && status == OK) {
+					HeapRecord record = scan.next();
+					if (!Arrays.equals(record.getTuple().data, recs.get(i++))) {
+						System.err.println ("*** A loaded record doesn't read back in order\n");
+						status = FAIL;
+					}
+					onPage = record.getRID().pageno.pid == pid ? onPage + 1 : 1;
+					pid = record.getRID().pageno.pid;
+					pageMax = Math.max(pageMax, onPage);
+				}
+				scan.close();
+				if (h == f) {
+					fullMax = pageMax;
+				} else {
+					halfMax = pageMax;
+				}
+			}
+			if (status == OK && (2 * halfMax > fullMax + 1 || g.getPageCnt() <= f.getPageCnt())) {
+				System.err.println ("*** Half full pages hold " + halfMax + " records, full ones " + fullMax + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reject fill factors outside (0, 1]\n");
+			for (double fillFactor : new double[] { 0, 1.5 }) {
+				boolean rejected = false;
+				try {
+					f.openBulkWriter(fillFactor);
+				}
+				catch (IllegalArgumentException e) {
+					rejected = true;
+				}
+				if (!rejected) {
+					System.err.println ("*** A fill factor of " + fillFactor + " was accepted\n");
+					status = FAIL;
+				}
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(g, status);
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 16 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test17 () {
+		System.out.println ("\n  Test 17: Insert records in batches\n");
+		HeapFile f = null;
+		List<byte[]> recs = new ArrayList<>();
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_17");
+
+			System.out.println ("  - Insert " + choice + " records of varying lengths from a list\n");
+			for (int i = 0; i < choice; i++) {
+				recs.add(concurrentRecord(25, i, reclen + i % 30));
+			}
+			RID[] rids = f.insertRecords(recs);
+			for (int i = 0; i < choice && status == OK; i++) {
+				if (!Arrays.equals(f.getRecord(rids[i]).data, recs.get(i))) {
+					System.err.println ("*** RID " + i + " doesn't name record " + i + "\n");
+					status = FAIL;
+				}
+			}
+
+			System.out.println ("  - Insert the same records again from one buffer\n");
+			int[] lengths = new int[choice];
+			ByteBuffer buffer = ByteBuffer.allocate(choice * (reclen + 30));
+			for (int i = 0; i < choice; i++) {
+				lengths[i] = recs.get(i).length;
+				buffer.put(recs.get(i));
+			}
+			buffer.flip();
+			RID[] more = f.insertRecords(buffer, lengths);
+			for (int i = 0; i < choice && status == OK; i++) {
+				if (!Arrays.equals(f.getRecord(more[i]).data, recs.get(i))) {
+					System.err.println ("*** RID " + i + " of the buffer's batch doesn't name record " + i + "\n");
+					status = FAIL;
+				}
+			}
+			if (status == OK && (buffer.hasRemaining() || f.getRecCnt() != 2 * choice)) {
+				System.err.println ("*** The batches left " + f.getRecCnt() + " records, not " + 2 * choice + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reject a batch holding a record larger than a page\n");
+			boolean rejected = false;
+			try {
+				f.insertRecords(Arrays.asList(recs.get(0), new byte[PAGE_SIZE]));
+			}
+			catch (ChainException e) {
+				rejected = true;
+			}
+			if (status == OK && (!rejected || f.getRecCnt() != 2 * choice)) {
+				System.err.println ("*** A batch holding a record larger than a page was inserted\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 17 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test18 () {
+		System.out.println ("\n  Test 18: Read records in place through a TupleView\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_18");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(26, i, i == 0 ? 2 * PAGE_SIZE : reclen));
+			}
+
+			System.out.println ("  - Read every record through one view\n");
+			TupleView view = new TupleView();
+			RID rid = new RID();
+			byte[] rec = new byte[2 * PAGE_SIZE];
+			int buffers = Minibase.BufferManager.getNumBuffers();
+			for (int i = 0; i < choice && status == OK; i++) {
+				byte[] expect = concurrentRecord(26, i, i == 0 ? 2 * PAGE_SIZE : reclen);
+				f.getRecord(rids[i], view);
+				view.copyTo(rec, 0);
+				view.getRID(rid);
+				if (view.getLength() != expect.length || !Arrays.equals(Arrays.copyOf(rec, expect.length), expect)
+						|| !view.asByteBuffer().equals(ByteBuffer.wrap(expect))
+						|| !Arrays.equals(view.toTuple().data, expect)
+						|| view.getByte(1) != expect[1] || view.getInt(4) != Convert.getIntValue(4, expect)
+						|| rid.pageno.pid != rids[i].pageno.pid || rid.slotno != rids[i].slotno) {
+					System.err.println ("*** Record " + i + " doesn't read back through the view\n");
+					status = FAIL;
+				}
+				if (status == OK && Minibase.BufferManager.getNumUnpinned() != buffers - 1) {
+					System.err.println ("*** The view holds " + (buffers - Minibase.BufferManager.getNumUnpinned()) + " pins, not one\n");
+					status = FAIL;
+				}
+			}
+
+			System.out.println ("  - Shrink a record while it's in view, then delete it\n");
+			f.getRecord(rids[2], view);
+			byte[] shrunk = concurrentRecord(27, 2, reclen / 2);
+			f.updateRecord(rids[2], new Tuple(shrunk, 0, shrunk.length));
+			if (status == OK && (view.getLength() != shrunk.length || !Arrays.equals(view.toTuple().data, shrunk)
+					|| view.getByte(0) != 27 || !view.isStable())) {
+				System.err.println ("*** The view didn't re-read the shrunk record\n");
+				status = FAIL;
+			}
+			f.deleteRecord(rids[2]);
+			boolean deleted = false;
+			try {
+				view.getByte(0);
+			}
+			catch (ConcurrentModificationException e) {
+				deleted = true;
+			}
+			if (status == OK && (!deleted || view.isValid())) {
+				System.err.println ("*** The view still read the deleted record\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Read outside the record and after releasing the view\n");
+			f.getRecord(rids[3], view);
+			boolean outside = false;
+			try {
+				view.getInt(reclen - 2);
+			}
+			catch (IndexOutOfBoundsException e) {
+				outside = true;
+			}
+			view.release();
+			boolean released = false;
+			try {
+				view.getLength();
+			}
+			catch (IllegalStateException e) {
+				released = true;
+			}
+			if (status == OK && (!outside || !released || view.isValid())) {
+				System.err.println ("*** The view read outside its record\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 18 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test19 () {
+		System.out.println ("\n  Test 19: Scan records into a TupleView\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_19");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(27, i, i % 25 == 1 ? 2 * PAGE_SIZE : reclen));
+			}
+			for (int i = 0; i < choice; i += 5) {
+				f.deleteRecord(rids[i]);
+			}
+
+			System.out.println ("  - Scan the records into one view, calling hasNext before every other one\n");
+			TupleView view = new TupleView();
+			RID rid = new RID();
+			int buffers = Minibase.BufferManager.getNumBuffers();
+			int i = 0;
+			HeapScan scan = f.openScan();
+			while (status == OK && (i % 2 == 1 || scan.hasNext()) && scan.nextInto(view)) {
+				if (i % 5 == 0) {
+					i++;
+				}
+				view.getRID(rid);
+				if (i >= choice || !Arrays.equals(view.toTuple().data, concurrentRecord(27, i, i % 25 == 1 ? 2 * PAGE_SIZE : reclen))
+						|| rid.pageno.pid != rids[i].pageno.pid || rid.slotno != rids[i].slotno) {
+					System.err.println ("*** The scan's view doesn't show record " + i + "\n");
+					status = FAIL;
+				}
+				if (status == OK && Minibase.BufferManager.getNumUnpinned() < buffers - 1) {
+					System.err.println ("*** The scan holds more than one pin\n");
+					status = FAIL;
+				}
+				i++;
+			}
+			if (status == OK && (scan.nextInto(view) || i != choice)) {
+				System.err.println ("*** The scan stopped at record " + i + ", not " + choice + "\n");
+				status = FAIL;
+			}
+			scan.close();
+
+			System.out.println ("  - Delete the record the scan's view shows\n");
+			scan = f.openScan();
+			scan.nextInto(view);
+			scan.nextInto(view);
+			view.getRID(rid);
+			f.deleteRecord(rid);
+			boolean deleted = false;
+			try {
+				view.getInt(0);
+			}
+			catch (ConcurrentModificationException e) {
+				deleted = true;
+			}
+			if (status == OK && (rid.slotno != rids[2].slotno || !deleted)) {
+				System.err.println ("*** The view still read record 2 after it was deleted\n");
+				status = FAIL;
+			}
+			if (status == OK && (!scan.nextInto(view) || !Arrays.equals(view.toTuple().data, concurrentRecord(27, 3, reclen)))) {
+				System.err.println ("*** The scan didn't go on to record 3\n");
+				status = FAIL;
+			}
+			scan.close();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 19 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test20 () {
+		System.out.println ("\n  Test 20: Scan with predicates and a projection\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_20");
+
+			System.out.println ("  - Insert " + choice + " records numbered at byte 4, and some too short to hold the number\n");
+			for (int i = 0; i < choice; i++) {
+				byte[] rec = concurrentRecord(28, i, reclen);
+				Convert.setIntValue (i, 4, rec);
+				rids[i] = f.insertRecord(rec);
+				if (i % 10 == 0) {
+					f.insertRecord(new byte[] { 28, 0, 0 });
+				}
+			}
+
+			System.out.println ("  - Scan for the even numbered records in the top half, projecting three ranges\n");
+			ScanSpec spec = new ScanSpec()
+				.whereInt(4, ScanSpec.Op.GE, choice / 2)
+				.where((data, offset, length) -> (data[offset + 7] & 1) == 0)
+				.project(4, 4)
+				.project(0, 1)
+				.project(reclen - 2, 8);
+			int count = 0;
+			RID rid = new RID();
+			HeapScan scan = f.openScan(spec);
+			Tuple tuple;
+			while ((tuple = scan.getNext(rid)) != null && status == OK) {
+				int i = Convert.getIntValue(0, tuple.data);
+				byte[] rec = concurrentRecord(28, i, reclen);
+				if (i < choice / 2 || i % 2 != 0 || tuple.data.length != 7 || tuple.data[4] != rec[0]
+						|| tuple.data[5] != rec[reclen - 2] || tuple.data[6] != rec[reclen - 1]
+						|| rid.pageno.pid != rids[i].pageno.pid || rid.slotno != rids[i].slotno) {
+					System.err.println ("*** The scan returned record " + i + " wrong\n");
+					status = FAIL;
+				}
+				count++;
+			}
+			scan.close();
+			if (status == OK && count != (choice - choice / 2 + 1) / 2) {
+				System.err.println ("*** The scan returned " + count + " records, not " + (choice - choice / 2 + 1) / 2 + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Update the record a scan has read ahead so it no longer passes\n");
+			int first = choice / 2;
+			scan = f.openScan(new ScanSpec().whereInt(4, ScanSpec.Op.GE, first));
+			TupleView view = new TupleView();
+			if (!scan.nextInto(view) || view.getInt(4) != first || !scan.hasNext()) {
+				System.err.println ("*** The scan didn't return record " + first + " and read on\n");
+				status = FAIL;
+			}
+			byte[] rec = concurrentRecord(28, first + 1, reclen);
+			Convert.setIntValue (0, 4, rec);
+			f.updateRecord(rids[first + 1], new Tuple(rec, 0, reclen));
+			if (status == OK && (!scan.nextInto(view) || view.getInt(4) != first + 2)) {
+				System.err.println ("*** The scan returned the updated record, which fails its predicate\n");
+				status = FAIL;
+			}
+			view.release();
+			scan.close();
+
+			System.out.println ("  - Reject a projection starting before the record\n");
+			boolean rejected = false;
+			try {
+				new ScanSpec().project(-1, 4);
+			}
+			catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			if (status == OK && !rejected) {
+				System.err.println ("*** A projection starting before the record was accepted\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 20 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test21 () {
+		System.out.println ("\n  Test 21: Scan a file in parallel partitions\n");
+		int count = 10 * choice;
+		HeapFile f = null;
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_21");
+			for (int i = 0; i < count; i++) {
+				byte[] rec = concurrentRecord(29, i, reclen);
+				Convert.setIntValue (i, 4, rec);
+				f.insertRecord(rec);
+			}
+
+			System.out.println ("  - Run four partitions of a scan on their own threads\n");
+			HeapScan[] scans = f.openParallelScan(4);
+			boolean[] seen = new boolean[count];
+			boolean[] failed = new boolean[1];
+			Thread[] threads = new Thread[scans.length];
+			for (int t = 0; t < scans.length; t++) {
+				HeapScan scan = scans[t];
+				threads[t] = new Thread(() -> {
+					try {
+						int last = -1;
+						while (scan.hasNext()) {
+							int i = Convert.getIntValue(4, scan.next().getTuple().data);
+							synchronized (seen) {
+								if (i <= last || seen[i]) {
+									failed[0] = true;
+								}
+								seen[i] = true;
+							}
+							last = i;
+						}
+						scan.close();
+					}
+					catch (Exception e) {
+						failed[0] = true;
+						e.printStackTrace();
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			for (int i = 0; i < count; i++) {
+				failed[0] |= !seen[i];
+			}
+			if (scans.length != 4 || failed[0]) {
+				System.err.println ("*** The partitions didn't return each record once, in order\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Split a spliterator down to single pages\n");
+			List<Spliterator<HeapRecord>> parts = new ArrayList<>();
+			parts.add(f.spliterator());
+			for (int p = 0; p < parts.size(); p++) {
+				Spliterator<HeapRecord> prefix;
+				while ((prefix = parts.get(p).trySplit()) != null) {
+					parts.add(prefix);
+				}
+			}
+			long estimate = 0;
+			long[] total = new long[1];
+			for (Spliterator<HeapRecord> part : parts) {
+				estimate += part.estimateSize();
+				part.forEachRemaining(record -> total[0]++);
+			}
+			if (status == OK && (parts.size() != f.getPageCnt() || estimate != count || total[0] != count)) {
+				System.err.println ("*** " + parts.size() + " parts estimated " + estimate + " records and returned " + total[0] + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reject zero partitions\n");
+			boolean rejected = false;
+			try {
+				f.openParallelScan(0);
+			}
+			catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			if (status == OK && !rejected) {
+				System.err.println ("*** A scan was split into zero partitions\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 21 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test22 () {
+		System.out.println ("\n  Test 22: Scan with prefetching\n");
+		int count = 10 * choice;
+		HeapFile f = null;
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_22");
+			for (int i = 0; i < count; i++) {
+				f.insertRecord(concurrentRecord(30, i, reclen));
+			}
+
+			for (int maxPages : new int[] { 2, 8 }) {
+				System.out.println ("  - Scan with up to " + maxPages + " pages prefetched\n");
+				int i = 0;
+				HeapScan scan = f.openScan();
+				scan.enablePrefetch(maxPages);
+				while (scan.hasNext() && status == OK) {
+					if (!Arrays.equals(scan.next().getTuple().data, concurrentRecord(30, i, reclen))) {
+						System.err.println ("*** Record " + i + " doesn't read back with prefetching\n");
+						status = FAIL;
+					}
+					i++;
+				}
+				scan.close();
+				if (status == OK && i != count) {
+					System.err.println ("*** The scan returned " + i + " records, not " + count + "\n");
+					status = FAIL;
+				}
+			}
+
+			System.out.println ("  - Reject a prefetch distance of zero\n");
+			boolean rejected = false;
+			HeapScan scan = f.openScan();
+			try {
+				scan.enablePrefetch(0);
+			}
+			catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			scan.close();
+			if (status == OK && !rejected) {
+				System.err.println ("*** A prefetch distance of zero was accepted\n");
+				status = FAIL;
+			}
+
+			// The last prefetches may still be reading pages in
+			for (int n = 0; n < 100 && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers(); n++) {
+				Thread.sleep(10);
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 22 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test23 () {
+		System.out.println ("\n  Test 23: Scan around the buffer pool\n");
+		int count = 10 * choice;
+		HeapFile f = null;
+		RID[] rids = new RID[count];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_23");
+
+			System.out.println ("  - Insert " + count + " records and update every third one, leaving pages dirty\n");
+			for (int i = 0; i < count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(31, i, reclen));
+			}
+			for (int i = 0; i < count; i += 3) {
+				byte[] rec = concurrentRecord(32, i, reclen);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+
+			System.out.println ("  - Scan with bulk reads\n");
+			int i = 0;
+			int buffers = Minibase.BufferManager.getNumBuffers();
+			HeapScan scan = f.openScan(new ScanSpec().bulkRead());
+			scan.enablePrefetch(8);
+			while (scan.hasNext() && status == OK) {
+				if (!Arrays.equals(scan.next().getTuple().data, concurrentRecord(i % 3 == 0 ? 32 : 31, i, reclen))) {
+					System.err.println ("*** Record " + i + " doesn't read back as last written\n");
+					status = FAIL;
+				}
+				if (status == OK && Minibase.BufferManager.getNumUnpinned() != buffers) {
+					System.err.println ("*** The bulk-read scan pinned pages in the buffer pool\n");
+					status = FAIL;
+				}
+				i++;
+			}
+			scan.close();
+			if (status == OK && i != count) {
+				System.err.println ("*** The scan returned " + i + " records, not " + count + "\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 23 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test24 () {
+		System.out.println ("\n  Test 24: Reuse the space and slot a delete frees\n");
+		int length = 2 * PAGE_SIZE / 5;
+		HeapFile f = null;
+		RID[] rids = new RID[4];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_24");
+
+			System.out.println ("  - Fill two pages with two records each and delete the first record\n");
+			for (int i = 0; i < 4; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(33, i, length));
+			}
+			if (rids[1].pageno.pid != rids[0].pageno.pid || rids[2].pageno.pid == rids[0].pageno.pid
+					|| rids[3].pageno.pid != rids[2].pageno.pid) {
+				System.err.println ("*** The records aren't two to a page\n");
+				status = FAIL;
+			}
+			int pageCnt = f.getPageCnt();
+			f.deleteRecord(rids[0]);
+
+			System.out.println ("  - Insert a record as long as the deleted one, which only fits once the page is compacted\n");
+			byte[] rec = concurrentRecord(34, 0, length);
+			RID rid = f.insertRecord(rec);
+			if (status == OK && (rid.pageno.pid != rids[0].pageno.pid || rid.slotno != rids[0].slotno || f.getPageCnt() != pageCnt)) {
+				System.err.println ("*** The record didn't take the deleted record's slot\n");
+				status = FAIL;
+			}
+			for (int i = 1; i < 4 && status == OK; i++) {
+				if (!Arrays.equals(f.getRecord(rids[i]).data, concurrentRecord(33, i, length))) {
+					System.err.println ("*** Record " + i + " was damaged by the compaction\n");
+					status = FAIL;
+				}
+			}
+			if (status == OK && !Arrays.equals(f.getRecord(rid).data, rec)) {
+				System.err.println ("*** The new record doesn't read back\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 24 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test25 () {
+		System.out.println ("\n  Test 25: Lay pages out by PAGE_SIZE\n");
+		HeapFile f = null;
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_25");
+
+			System.out.println ("  - Store records of every length around the largest a data page holds\n");
+			int from = PAGE_SIZE - 48;
+			int to = PAGE_SIZE + 8;
+			RID[] rids = new RID[to - from];
+			long liveBytes = 0;
+			for (int length = from; length < to; length++) {
+				rids[length - from] = f.insertRecord(concurrentRecord(35, length, length));
+				liveBytes += length;
+			}
+			for (int length = from; length < to && status == OK; length++) {
+				if (!Arrays.equals(f.getRecord(rids[length - from]).data, concurrentRecord(35, length, length))) {
+					System.err.println ("*** The " + length + "-byte record doesn't read back\n");
+					status = FAIL;
+				}
+			}
+			if (status == OK && f.getLiveBytes() != liveBytes) {
+				System.err.println ("*** The file counts " + f.getLiveBytes() + " live bytes, not " + liveBytes + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Pack pages with records of up to 3 bytes and delete every third one\n");
+			int count = PAGE_SIZE / 2;
+			RID[] tiny = new RID[count];
+			for (int i = 0; i < count; i++) {
+				tiny[i] = f.insertRecord(new byte[i % 4]);
+			}
+			for (int i = 0; i < count; i += 3) {
+				f.deleteRecord(tiny[i]);
+			}
+			int scanned = 0;
+			HeapScan scan = f.openScan();
+			while (scan.hasNext()) {
+				scan.next();
+				scanned++;
+			}
+			scan.close();
+			if (status == OK && (scanned != f.getRecCnt() || scanned != to - from + count - (count + 2) / 3)) {
+				System.err.println ("*** The scan returned " + scanned + " records, the file counts " + f.getRecCnt() + "\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reject the file once its header records another page size\n");
+			// The page size is the int at byte 32 of the header page
+			PageId headerId = Minibase.DiskManager.get_file_entry("file_25");
+			Page header = new Page();
+			Minibase.BufferManager.pinPage(headerId, header, false);
+			Convert.setIntValue (2 * PAGE_SIZE, 32, header.getData());
+			Minibase.BufferManager.unpinPage(headerId, true);
+			boolean rejected = false;
+			try {
+				new HeapFile("file_25");
+			}
+			catch (ChainException e) {
+				rejected = true;
+			}
+			Minibase.BufferManager.pinPage(headerId, header, false);
+			Convert.setIntValue (PAGE_SIZE, 32, header.getData());
+			Minibase.BufferManager.unpinPage(headerId, true);
+			if (status == OK && (!rejected || new HeapFile("file_25").getRecCnt() != f.getRecCnt())) {
+				System.err.println ("*** A file with another page size was opened\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 25 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test26 () {
+		System.out.println ("\n  Test 26: Scan through a memory mapping of the database\n");
+		int count = 10 * choice;
+		String mappedpath = dbpath + "-mapped";
+		DiskMgr disk = Minibase.DiskManager;
+		BufMgr bufmgr = Minibase.BufferManager;
+		HeapFile f = null;
+		RID[] rids = new RID[2 * count];
+		boolean status = OK;
+
+		// The driver removes dbpath once the database is open, so this test
+		// maps a database of its own
+		new Minibase(mappedpath, DB_SIZE, BUF_SIZE, LAH_SIZE, "CLOCK", false);
+
+		try {
+			f = new HeapFile("file_26");
+			for (int i = 0; i < count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(36, i, reclen));
+			}
+
+			System.out.println ("  - Map the database, update every third record, and scan with bulk reads\n");
+			HeapFile.mapDatabase(mappedpath);
+			for (int i = 0; i < count; i += 3) {
+				byte[] rec = concurrentRecord(37, i, reclen);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+			status = checkMappedScan(f, count, count, status);
+
+			System.out.println ("  - Insert more records and scan again\n");
+			for (int i = count; i < 2 * count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(36, i, reclen));
+			}
+			status = checkMappedScan(f, 2 * count, count, status);
+
+			System.out.println ("  - Unmap the database and scan again through the disk manager\n");
+			HeapFile.unmapDatabase();
+			status = checkMappedScan(f, 2 * count, count, status);
+
+			System.out.println ("  - Map it again, write another file, and scan\n");
+			HeapFile.mapDatabase(mappedpath);
+			HeapFile g = new HeapFile("file_26b");
+			for (int i = 0; i < count; i++) {
+				g.insertRecord(concurrentRecord(36, i, reclen));
+			}
+			status = checkMappedScan(f, 2 * count, count, status);
+			g.deleteFile();
+
+			System.out.println ("  - Reject a database file that doesn't exist\n");
+			boolean rejected = false;
+			try {
+				HeapFile.mapDatabase(mappedpath + "-missing");
+			}
+			catch (ChainException e) {
+				rejected = true;
+			}
+			if (status == OK && !rejected) {
+				System.err.println ("*** A missing database file was mapped\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		try {
+			HeapFile.unmapDatabase();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+
+		try {
+			Minibase.DiskManager.closeDB();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+		Minibase.DiskManager = disk;
+		Minibase.BufferManager = bufmgr;
+		new File(mappedpath).delete();
+
+		if (status == OK)
+			System.out.println ("  Test 26 completed successfully.\n");
+		return status;
+	}
+
+	/**
+	 * Checks that a bulk-read scan of test 26's file returns its count
+	 * records, every third one of the first updated of them updated, without
+	 * keeping any page pinned.
+	 */
+	private boolean checkMappedScan(HeapFile f, int count, int updated, boolean status) throws Exception {
+		int i = 0;
+		HeapScan scan = f.openScan(new ScanSpec().bulkRead());
+		while (scan.hasNext() && status == OK) {
+			byte[] expect = concurrentRecord(i < updated && i % 3 == 0 ? 37 : 36, i, reclen);
+			if (!Arrays.equals(scan.next().getTuple().data, expect)) {
+				System.err.println ("*** Record " + i + " doesn't read back through the mapping\n");
+				status = FAIL;
+			}
+			if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+				System.err.println ("*** The scan has a page pinned at record " + i + "\n");
+				status = FAIL;
+			}
+			i++;
+		}
+		scan.close();
+		if (status == OK && i != count) {
+			System.err.println ("*** The scan returned " + i + " records, not " + count + "\n");
+			status = FAIL;
+		}
+		return status;
+	}
+
+	protected boolean test27 () {
+		System.out.println ("\n  Test 27: Read the heap layer's page fields with Convert\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean status = OK;
+
+		try {
+			f = new HeapFile("file_27");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(38, i, i == 0 ? 2 * PAGE_SIZE : reclen + i));
+			}
+
+			System.out.println ("  - Check the header page's statistics\n");
+			// Record count, page count, live and dead bytes and page size are
+			// big-endian at bytes 4, 8, 12, 20 and 32 of the header page
+			PageId headerId = Minibase.DiskManager.get_file_entry("file_27");
+			Page page = new Page();
+			Minibase.BufferManager.pinPage(headerId, page, false);
+			byte[] data = page.getData();
+			long liveBytes = (long)Convert.getIntValue(12, data) << 32 | Convert.getIntValue(16, data) & 0xFFFFFFFFL;
+			long deadBytes = (long)Convert.getIntValue(20, data) << 32 | Convert.getIntValue(24, data) & 0xFFFFFFFFL;
+			if (Convert.getIntValue(4, data) != f.getRecCnt() || Convert.getIntValue(8, data) != f.getPageCnt()
+					|| liveBytes != f.getLiveBytes() || deadBytes != f.getDeadBytes() || Convert.getIntValue(32, data) != PAGE_SIZE) {
+				System.err.println ("*** The header page doesn't hold the file's statistics\n");
+				status = FAIL;
+			}
+			Minibase.BufferManager.unpinPage(headerId, false);
+
+			System.out.println ("  - Check the slots of a data page\n");
+			// A data page keeps its own id at byte 20 and, from byte 26, an
+			// 8-byte slot per record: its length, then its offset
+			for (int i = 1; i < choice && status == OK; i++) {
+				Minibase.BufferManager.pinPage(rids[i].pageno, page, false);
+				data = page.getData();
+				int slot = 26 + 8 * rids[i].slotno;
+				int length = Convert.getIntValue(slot, data);
+				int offset = Convert.getIntValue(slot + 4, data);
+				if (Convert.getIntValue(20, data) != rids[i].pageno.pid || length != reclen + i
+						|| !Arrays.equals(Arrays.copyOfRange(data, offset, offset + length), concurrentRecord(38, i, reclen + i))) {
+					System.err.println ("*** Record " + i + "'s slot doesn't describe it\n");
+					status = FAIL;
+				}
+				Minibase.BufferManager.unpinPage(rids[i].pageno, false);
+			}
+
+			System.out.println ("  - Check the head of the record stored in overflow pages\n");
+			// A large record's slot length sets 0x10000000 over its 8-byte head:
+			// the record's length, then the id of its first overflow page
+			Minibase.BufferManager.pinPage(rids[0].pageno, page, false);
+			data = page.getData();
+			int head = Convert.getIntValue(26 + 8 * rids[0].slotno + 4, data);
+			if (status == OK && (Convert.getIntValue(26 + 8 * rids[0].slotno, data) != (0x10000000 | 8)
+					|| Convert.getIntValue(head, data) != 2 * PAGE_SIZE || Convert.getIntValue(head + 4, data) < 0)) {
+				System.err.println ("*** Record 0's slot isn't the head of a large record\n");
+				status = FAIL;
+			}
+			Minibase.BufferManager.unpinPage(rids[0].pageno, false);
+
+			System.out.println ("  - Delete record 2, move record 3 off its page, and check their slots\n");
+			// Free space is an int at byte 8; a deleted slot's length is -1
+			Minibase.BufferManager.pinPage(rids[2].pageno, page, false);
+			int freeSpace = Convert.getIntValue(8, page.getData());
+			Minibase.BufferManager.unpinPage(rids[2].pageno, false);
+			f.deleteRecord(rids[2]);
+			byte[] grown = concurrentRecord(38, 3, PAGE_SIZE - 100);
+			f.updateRecord(rids[3], new Tuple(grown, 0, grown.length));
+
+			Minibase.BufferManager.pinPage(rids[2].pageno, page, false);
+			data = page.getData();
+			if (status == OK && (Convert.getIntValue(26 + 8 * rids[2].slotno, data) != -1
+					|| Convert.getIntValue(8, data) < freeSpace + reclen + 2)) {
+				System.err.println ("*** Record 2's slot and space weren't given up\n");
+				status = FAIL;
+			}
+			Minibase.BufferManager.unpinPage(rids[2].pageno, false);
+
+			// A stub's slot length sets 0x40000000 over the 6-byte RID it points
+			// to, and the moved record's sets 0x20000000 over the same RID of
+			// its stub followed by the record
+			Minibase.BufferManager.pinPage(rids[3].pageno, page, false);
+			data = page.getData();
+			int link = Convert.getIntValue(26 + 8 * rids[3].slotno + 4, data);
+			RID target = new RID(new PageId(Convert.getIntValue(link, data)), (data[link + 4] & 0xFF) << 8 | data[link + 5] & 0xFF);
+			boolean stub = Convert.getIntValue(26 + 8 * rids[3].slotno, data) == (0x40000000 | 6);
+			Minibase.BufferManager.unpinPage(rids[3].pageno, false);
+			if (status == OK && !stub) {
+				System.err.println ("*** Record 3's slot isn't a stub\n");
+				status = FAIL;
+			}
+			if (status == OK) {
+				Minibase.BufferManager.pinPage(target.pageno, page, false);
+				data = page.getData();
+				int slot = 26 + 8 * target.slotno;
+				int offset = Convert.getIntValue(slot + 4, data);
+				if (Convert.getIntValue(slot, data) != (0x20000000 | grown.length + 6)
+						|| Convert.getIntValue(offset, data) != rids[3].pageno.pid
+						|| ((data[offset + 4] & 0xFF) << 8 | data[offset + 5] & 0xFF) != rids[3].slotno
+						|| !Arrays.equals(Arrays.copyOfRange(data, offset + 6, offset + 6 + grown.length), grown)) {
+					System.err.println ("*** Record 3's moved slot doesn't link back to its stub\n");
+					status = FAIL;
+				}
+				Minibase.BufferManager.unpinPage(target.pageno, false);
+			}
+			if (status == OK && !Arrays.equals(f.getRecord(rids[3]).data, grown)) {
+				System.err.println ("*** Record 3 doesn't read back through its stub\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 27 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test28 () {
+		System.out.println ("\n  Test 28: Write dirty pages back in the background\n");
+		int count = 10 * choice;
+		HeapFile f = null;
+		RID[] rids = new RID[count];
+		boolean status = OK;
+		boolean gated = false;
+
+		try {
+			HeapFile.startWriteback(8);
+			f = new HeapFile("file_28");
+
+			System.out.println ("  - Insert " + count + " records and update every third one\n");
+			for (int i = 0; i < count; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(39, i, reclen));
+			}
+			for (int i = 0; i < count; i += 3) {
+				byte[] rec = concurrentRecord(40, i, reclen);
+				f.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+			}
+			int recCnt = f.getRecCnt();
+			long liveBytes = f.getLiveBytes();
+
+			System.out.println ("  - Stop the writer and drop the buffer pool without flushing it\n");
+			HeapFile.stopWriteback();
+			Minibase.BufferManager = new BufMgr(BUF_SIZE, LAH_SIZE, "CLOCK");
+			f = new HeapFile("file_28");
+			for (int i = 0; i < count && status == OK; i++) {
+				if (!Arrays.equals(f.getRecord(rids[i]).data, concurrentRecord(i % 3 == 0 ? 40 : 39, i, reclen))) {
+					System.err.println ("*** Record " + i + " wasn't written back\n");
+					status = FAIL;
+				}
+			}
+			if (status == OK && (f.getRecCnt() != recCnt || f.getLiveBytes() != liveBytes)) {
+				System.err.println ("*** The file's statistics weren't written back\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Start a writer again and hold up an update of record 1 partway, with its page pinned\n");
+			HashSet<Integer> dataPages = new HashSet<>();
+			dataPages.add(rids[1].pageno.pid);
+			GatedBufMgr gate = gateBufferPool(dataPages);
+			gated = true;
+			HeapFile.startWriteback(count);
+			HeapFile file = f;
+			byte[] first = concurrentRecord(41, 1, reclen);
+			f.updateRecord(rids[1], new Tuple(first, 0, first.length));
+			byte[] second = concurrentRecord(42, 1, reclen);
+			Thread updater = new Thread(() -> {
+				try {
+					file.updateRecord(rids[1], new Tuple(second, 0, second.length));
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			gate.hold(updater);
+			updater.start();
+			boolean held = gate.awaitHeld(1000);
+			// Long enough for the writer to take its turn at the dirty pages
+			Thread.sleep(500);
+			HashSet<Integer> flushed = gate.getFlushedWhileHeld();
+			gate.release();
+			updater.join();
+			if (status == OK && (!held || flushed.isEmpty())) {
+				System.err.println ("*** The writer wrote nothing back while the update was held up\n");
+				status = FAIL;
+			}
+			if (status == OK && flushed.contains(rids[1].pageno.pid)) {
+				System.err.println ("*** The writer wrote back a page partway through a change\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Stop the writer, drop the buffer pool again, and read the update back\n");
+			HeapFile.stopWriteback();
+			Minibase.BufferManager = new BufMgr(BUF_SIZE, LAH_SIZE, "CLOCK");
+			gated = false;
+			f = new HeapFile("file_28");
+			if (status == OK && !Arrays.equals(f.getRecord(rids[1]).data, second)) {
+				System.err.println ("*** Record 1's update wasn't written back\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Reject a dirty page limit of zero\n");
+			boolean rejected = false;
+			try {
+				HeapFile.startWriteback(0);
+			}
+			catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			if (status == OK && !rejected) {
+				System.err.println ("*** A dirty page limit of zero was accepted\n");
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		try {
+			HeapFile.stopWriteback();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (gated) {
+			status = ungateBufferPool(status);
+		}
+		if (status == OK)
+			System.out.println ("  Test 28 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test29 () {
+		System.out.println ("\n  Test 29: Insert from several threads into pages of their own\n");
+		int threads = 4;
+		int count = 5 * choice;
+		HeapFile f = null;
+		RID[][] rids = new RID[threads][count];
+		boolean[] failed = new boolean[1];
+		boolean status = OK;
+
+		try {
+			HeapFile file = f = new HeapFile("file_29");
+
+			System.out.println ("  - Insert " + count + " records from each of " + threads + " threads\n");
+			Thread[] writers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				int id = t;
+				writers[t] = new Thread(() -> {
+					try {
+						for (int i = 0; i < count; i++) {
+							rids[id][i] = file.insertRecord(concurrentRecord(41 + id, i, reclen));
+							// Interleave the threads' inserts even on one processor
+							Thread.yield();
+						}
+					}
+					catch (Exception e) {
+						failed[0] = true;
+						e.printStackTrace();
+					}
+				});
+				writers[t].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+
+			System.out.println ("  - Read the records back and count each thread's records on every page\n");
+			HashMap<Integer, int[]> onPage = new HashMap<>();
+			HashSet<String> seen = new HashSet<>();
+			for (int t = 0; t < threads && !failed[0]; t++) {
+				for (int i = 0; i < count && !failed[0]; i++) {
+					RID rid = rids[t][i];
+					if (!seen.add(rid.pageno.pid + ":" + rid.slotno)
+							|| !Arrays.equals(f.getRecord(rid).data, concurrentRecord(41 + t, i, reclen))) {
+						System.err.println ("*** Thread " + t + "'s record " + i + " doesn't read back\n");
+						failed[0] = true;
+					}
+					onPage.computeIfAbsent(rid.pageno.pid, pid -> new int[threads])[t]++;
+				}
+			}
+			if (failed[0] || f.getRecCnt() != threads * count) {
+				status = FAIL;
+			}
+
+			System.out.println ("  - Check that each thread's records sit on pages no other thread wrote to\n");
+			int shared = 0;
+			int[] owned = new int[threads];
+			int[] ownedPages = new int[threads];
+			for (int[] counts : onPage.values()) {
+				int fillers = 0;
+				int owner = -1;
+				for (int t = 0; t < threads; t++) {
+					if (counts[t] > 0) {
+						fillers++;
+						owner = t;
+					}
+				}
+				if (fillers > 1) {
+					shared++;
+				} else {
+					owned[owner] += counts[owner];
+					ownedPages[owner]++;
+				}
+			}
+			// A thread hands its lane's page over at most once, when it moves on
+			if (status == OK && shared > threads) {
+				System.err.println ("*** " + shared + " of " + onPage.size() + " pages hold records of more than one thread\n");
+				status = FAIL;
+			}
+			for (int t = 0; t < threads && status == OK; t++) {
+				if (ownedPages[t] == 0 || 10 * owned[t] < 9 * count) {
+					System.err.println ("*** Only " + owned[t] + " of thread " + t + "'s " + count + " records are on its own "
+							+ ownedPages[t] + " pages\n");
+					status = FAIL;
+				}
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (status == OK)
+			System.out.println ("  Test 29 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test30 () {
+		System.out.println ("\n  Test 30: Read records while another thread moves them\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean[] failed = new boolean[1];
+		int[] reads = new int[2];
+		boolean status = OK;
+		boolean gated = false;
+
+		try {
+			HeapFile file = f = new HeapFile("file_30");
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(43, i, reclen));
+			}
+
+			System.out.println ("  - Grow and shrink every record twenty times while two threads read them\n");
+			Thread writer = new Thread(() -> {
+				try {
+					for (int round = 1; round <= 20; round++) {
+						for (int i = 0; i < choice; i++) {
+							byte[] rec = concurrentRecord(43 + round, i, round % 2 == 1 ? 8 * reclen : reclen);
+							file.updateRecord(rids[i], new Tuple(rec, 0, rec.length));
+							Thread.yield();
+						}
+					}
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			Thread[] readers = new Thread[2];
+			for (int t = 0; t < readers.length; t++) {
+				int id = t;
+				readers[t] = new Thread(() -> {
+					int[] rounds = new int[choice];
+					try {
+						for (int n = 0; writer.isAlive(); n++) {
+							int i = n % choice;
+							byte[] rec = file.getRecord(rids[i]).data;
+							int round = rec[0] - 43;
+							if (round < rounds[i] || round > 20 || rec.length != (round % 2 == 1 ? 8 * reclen : reclen)
+									|| !Arrays.equals(rec, concurrentRecord(43 + round, i, rec.length))) {
+								System.err.println ("*** Record " + i + " was read torn or out of order\n");
+								failed[0] = true;
+							}
+							rounds[i] = round;
+							reads[id]++;
+							Thread.yield();
+						}
+					}
+					catch (Exception e) {
+						failed[0] = true;
+						e.printStackTrace();
+					}
+				});
+			}
+			writer.start();
+			for (Thread reader : readers) {
+				reader.start();
+			}
+			writer.join();
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			for (int i = 0; i < choice && !failed[0]; i++) {
+				if (!Arrays.equals(f.getRecord(rids[i]).data, concurrentRecord(63, i, reclen))) {
+					System.err.println ("*** Record " + i + " doesn't read back as last written\n");
+					failed[0] = true;
+				}
+			}
+			if (!failed[0] && (reads[0] == 0 || reads[1] == 0)) {
+				System.err.println ("*** The readers read nothing while the writer ran\n");
+				failed[0] = true;
+			}
+
+			System.out.println ("  - Hold up an update partway, with its page latched, and read the record meanwhile\n");
+			RID rid = f.insertRecord(concurrentRecord(64, 0, reclen));
+			HashSet<Integer> dataPages = new HashSet<>();
+			dataPages.add(rid.pageno.pid);
+			GatedBufMgr gate = gateBufferPool(dataPages);
+			gated = true;
+			Thread updater = new Thread(() -> {
+				try {
+					byte[] rec = concurrentRecord(65, 0, reclen);
+					file.updateRecord(rid, new Tuple(rec, 0, rec.length));
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			gate.hold(updater);
+			updater.start();
+			boolean held = gate.awaitHeld(1000);
+			byte[][] seen = new byte[1][];
+			Thread reader = new Thread(() -> {
+				try {
+					seen[0] = file.getRecord(rid).data;
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			reader.start();
+			reader.join(500);
+			boolean waited = reader.isAlive();
+			gate.release();
+			updater.join();
+			reader.join();
+			// The optimistic read never waits; only falling back to the latch does
+			if (!failed[0] && (!held || !waited)) {
+				System.err.println ("*** The read didn't fall back to waiting for the update's latch\n");
+				failed[0] = true;
+			}
+			if (!failed[0] && !Arrays.equals(seen[0], concurrentRecord(65, 0, reclen))) {
+				System.err.println ("*** The read didn't see the finished update\n");
+				failed[0] = true;
+			}
+			if (failed[0]) {
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		if (gated) {
+			status = ungateBufferPool(status);
+		}
+		if (status == OK)
+			System.out.println ("  Test 30 completed successfully.\n");
+		return status;
+	}
+
+	protected boolean test31 () {
+		System.out.println ("\n  Test 31: Read records while an update waits on the directory\n");
+		HeapFile f = null;
+		RID[] rids = new RID[choice];
+		boolean[] failed = new boolean[1];
+		int[] read = new int[1];
+		boolean status = OK;
+
+		try {
+			HeapFile file = f = new HeapFile("file_31");
+			HashSet<Integer> dataPages = new HashSet<>();
+			for (int i = 0; i < choice; i++) {
+				rids[i] = f.insertRecord(concurrentRecord(44, i, reclen));
+				dataPages.add(rids[i].pageno.pid);
+			}
+
+			System.out.println ("  - Hold up an update of record 0 when it pins a directory page\n");
+			GatedBufMgr gated = gateBufferPool(dataPages);
+			Thread writer = new Thread(() -> {
+				try {
+					byte[] rec = concurrentRecord(45, 0, reclen);
+					file.updateRecord(rids[0], new Tuple(rec, 0, rec.length));
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			gated.hold(writer);
+			writer.start();
+			if (!gated.awaitHeld(1000)) {
+				System.err.println ("*** The update never pinned a directory page\n");
+				status = FAIL;
+			}
+
+			System.out.println ("  - Read the records on the other pages meanwhile\n");
+			Thread reader = new Thread(() -> {
+				try {
+					for (int i = 0; i < choice; i++) {
+						if (rids[i].pageno.pid != rids[0].pageno.pid) {
+							if (!Arrays.equals(file.getRecord(rids[i]).data, concurrentRecord(44, i, reclen))) {
+								System.err.println ("*** Record " + i + " read back wrong\n");
+								failed[0] = true;
+							}
+							read[0]++;
+						}
+					}
+				}
+				catch (Exception e) {
+					failed[0] = true;
+					e.printStackTrace();
+				}
+			});
+			reader.start();
+			reader.join(2000);
+			boolean waited = reader.isAlive();
+			gated.release();
+			writer.join();
+			reader.join();
+			if (status == OK && (waited || read[0] == 0)) {
+				System.err.println ("*** The reads waited for the update to finish\n");
+				status = FAIL;
+			}
+			if (status == OK && !Arrays.equals(f.getRecord(rids[0]).data, concurrentRecord(45, 0, reclen))) {
+				System.err.println ("*** The update was lost\n");
+				status = FAIL;
+			}
+			if (failed[0]) {
+				status = FAIL;
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		status = deleteTestFile(f, status);
+		status = ungateBufferPool(status);
+		if (status == OK)
+			System.out.println ("  Test 31 completed successfully.\n");
+		return status;
+	}
+
+	/**
+	 * Checks that a test left no pages pinned, then deletes its file.
+	 */
+	private boolean deleteTestFile(HeapFile f, boolean status) {
+		if (status == OK && Minibase.BufferManager.getNumUnpinned() != Minibase.BufferManager.getNumBuffers()) {
+			System.err.println ("*** The test left pages pinned\n");
+			status = FAIL;
+		}
+
+		try {
+			if (f != null) {
+				f.deleteFile();
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+		return status;
+	}
+
+	/**
+	 * Builds the record tests 7 and up write: the writer's id and the record's
+	 * number, then bytes that follow from them.
+	 */
+	private static byte[] concurrentRecord(int id, int i, int length) {
+		byte[] rec = new byte[length];
+		rec[0] = (byte)id;
+		rec[1] = (byte)i;
+		for (int k = 2; k < length; k++) {
+			rec[k] = (byte)(id * 31 + i + k);
+		}
+		return rec;
+	}
+
+	/**
+	 * Flushes the buffer pool and puts a GatedBufMgr over the given data
+	 * pages in its place.
+	 */
+	private GatedBufMgr gateBufferPool(HashSet<Integer> dataPages) throws Exception {
+		Minibase.BufferManager.flushAllPages();
+		GatedBufMgr gate = new GatedBufMgr(BUF_SIZE, LAH_SIZE, dataPages);
+		Minibase.BufferManager = gate;
+		return gate;
+	}
+
+	/**
+	 * Flushes the gated buffer pool and puts a plain one back in its place.
+	 */
+	private boolean ungateBufferPool(boolean status) {
+		try {
+			Minibase.BufferManager.flushAllPages();
+			Minibase.BufferManager = new BufMgr(BUF_SIZE, LAH_SIZE, "CLOCK");
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+		return status;
+	}
+
+	/**
+	 * A buffer manager that holds up one thread when it pins a page other
+	 * than the given data pages. The thread waits on the buffer manager, so
+	 * other threads can pin and flush pages meanwhile, until it's released;
+	 * the pages flushed meanwhile are noted.
+	 */
+	private static class GatedBufMgr extends BufMgr {
+
+		private HashSet<Integer> dataPages;
+		private Thread held;
+		private boolean waiting;
+		private HashSet<Integer> flushedWhileHeld = new HashSet<>();
+
+		GatedBufMgr(int numbufs, int lookAheadSize, HashSet<Integer> dataPages) {
+			super(numbufs, lookAheadSize, "CLOCK");
+			this.dataPages = dataPages;
+		}
+
+		public void pinPage(PageId pageId, Page page, boolean emptyPage) {
+			synchronized (this) {
+				if (Thread.currentThread() == held && !dataPages.contains(pageId.pid)) {
+					waiting = true;
+					notifyAll();
+					while (held != null) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+				}
+			}
+			super.pinPage(pageId, page, emptyPage);
+		}
+
+		public void flushPage(PageId pageId) {
+			synchronized (this) {
+				if (waiting && held != null) {
+					flushedWhileHeld.add(pageId.pid);
+				}
+			}
+			super.flushPage(pageId);
+		}
+
+		synchronized void hold(Thread thread) {
+			held = thread;
+		}
+
+		synchronized HashSet<Integer> getFlushedWhileHeld() {
+			return new HashSet<>(flushedWhileHeld);
+		}
+
+		synchronized boolean awaitHeld(long millis) throws InterruptedException {
+			long end = System.currentTimeMillis() + millis;
+			while (!waiting && System.currentTimeMillis() < end) {
+				wait(Math.max(1, end - System.currentTimeMillis()));
+			}
+			return waiting;
+		}
+
+		synchronized void release() {
+			held = null;
+			notifyAll();
+		}
+	}
+
 	protected boolean runAllTests (){
 
 		boolean _passAll = OK;
@@ -862,6 +3246,31 @@ class HFDriver extends TestDriver implements GlobalConst
 		if (!test3()) { _passAll = FAIL; }
 		if (!test4()) { _passAll = FAIL; }
 		if (!test5()) { _passAll = FAIL; }
+		if (!test7()) { _passAll = FAIL; }
+		if (!test8()) { _passAll = FAIL; }
+		if (!test9()) { _passAll = FAIL; }
+		if (!test10()) { _passAll = FAIL; }
+		if (!test11()) { _passAll = FAIL; }
+		if (!test12()) { _passAll = FAIL; }
+		if (!test13()) { _passAll = FAIL; }
+		if (!test14()) { _passAll = FAIL; }
+		if (!test15()) { _passAll = FAIL; }
+		if (!test16()) { _passAll = FAIL; }
+		if (!test17()) { _passAll = FAIL; }
+		if (!test18()) { _passAll = FAIL; }
+		if (!test19()) { _passAll = FAIL; }
+		if (!test20()) { _passAll = FAIL; }
+		if (!test21()) { _passAll = FAIL; }
+		if (!test22()) { _passAll = FAIL; }
+		if (!test23()) { _passAll = FAIL; }
+		if (!test24()) { _passAll = FAIL; }
+		if (!test25()) { _passAll = FAIL; }
+		if (!test26()) { _passAll = FAIL; }
+		if (!test27()) { _passAll = FAIL; }
+		if (!test28()) { _passAll = FAIL; }
+		if (!test29()) { _passAll = FAIL; }
+		if (!test30()) { _passAll = FAIL; }
+		if (!test31()) { _passAll = FAIL; }
 //		if (!test6()) { _passAll = FAIL; }
 
 		return _passAll;